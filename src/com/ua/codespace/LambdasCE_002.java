@@ -0,0 +1,578 @@
+package com.ua.codespace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.IntSummaryStatistics;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.ua.codespace.LambdasCE_001.Gender;
+import com.ua.codespace.LambdasCE_001.Person;
+
+import static com.ua.codespace.LambdasCE_001.Gender.FEMALE;
+import static com.ua.codespace.LambdasCE_001.Gender.MALE;
+import static com.ua.codespace.LambdasCE_001.persons;
+
+/**
+ * Queries over a big population of persons.
+ * LambdasCE_001 keeps persons as a list of objects, so every query follows a reference per person just to read two fields.
+ */
+public class LambdasCE_002 {
+
+    /**
+     * Struct-of-arrays person storage: one int[] column for ages, one byte[] column for genders (enum ordinals)
+     * and dictionary-encoded names (int[] of ids into a list of distinct names).
+     * Queries are plain loops over primitive columns, that are read sequentially and can be split between cores.
+     */
+    static class PersonTable {
+        static final int CHUNK_SIZE = 1 << 16;
+        private static final Gender[] GENDERS = Gender.values();
+
+        private int[] ages = new int[16];
+        private byte[] genders = new byte[16];
+        private int[] nameIds = new int[16];
+        private final List<String> names = new ArrayList<>();
+        private final Map<String, Integer> nameDictionary = new HashMap<>();
+        private int size;
+
+        static PersonTable of(List<Person> persons) {
+            PersonTable table = new PersonTable();
+            persons.forEach(table::add);
+            return table;
+        }
+
+        void add(Person person) {
+            add(person.getName(), person.getAge(), person.getGender());
+        }
+
+        void add(String name, int age, Gender gender) {
+            if (size == ages.length) {
+                int capacity = size * 2;
+                ages = Arrays.copyOf(ages, capacity);
+                genders = Arrays.copyOf(genders, capacity);
+                nameIds = Arrays.copyOf(nameIds, capacity);
+            }
+            ages[size] = age;
+            genders[size] = (byte) gender.ordinal();
+            nameIds[size] = nameDictionary.computeIfAbsent(name, n -> {
+                names.add(n);
+                return names.size() - 1;
+            });
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        Person get(int row) {
+            if (row < 0 || row >= size) {
+                throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + size);
+            }
+            return new Person(names.get(nameIds[row]), ages[row], GENDERS[genders[row]]);
+        }
+
+        /**
+         * Count, min, max and average age of persons of the given gender, which age matches the predicate.
+         */
+        IntSummaryStatistics ageStatistics(Gender gender, IntPredicate agePredicate) {
+            return ageStatistics((byte) gender.ordinal(), agePredicate, 0, size);
+        }
+
+        IntSummaryStatistics ageStatistics(Gender gender) {
+            return ageStatistics(gender, age -> true);
+        }
+
+        /**
+         * The same as ageStatistics, but chunks of CHUNK_SIZE rows are processed in parallel.
+         */
+        IntSummaryStatistics parallelAgeStatistics(Gender gender, IntPredicate agePredicate) {
+            byte code = (byte) gender.ordinal();
+            int chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            return IntStream.range(0, chunks)
+                    .parallel()
+                    .mapToObj(chunk -> ageStatistics(code, agePredicate, chunk * CHUNK_SIZE, Math.min(size, (chunk + 1) * CHUNK_SIZE)))
+                    .collect(IntSummaryStatistics::new, IntSummaryStatistics::combine, IntSummaryStatistics::combine);
+        }
+
+        IntSummaryStatistics parallelAgeStatistics(Gender gender) {
+            return parallelAgeStatistics(gender, age -> true);
+        }
+
+        OptionalInt maxAge(Gender gender) {
+            IntSummaryStatistics statistics = ageStatistics(gender);
+            return statistics.getCount() == 0 ? OptionalInt.empty() : OptionalInt.of(statistics.getMax());
+        }
+
+        List<String> names(Gender gender) {
+            byte code = (byte) gender.ordinal();
+            List<String> result = new ArrayList<>();
+            for (int row = 0; row < size; row++) {
+                if (genders[row] == code) {
+                    result.add(names.get(nameIds[row]));
+                }
+            }
+            return result;
+        }
+
+        private IntSummaryStatistics ageStatistics(byte gender, IntPredicate agePredicate, int from, int to) {
+            IntSummaryStatistics statistics = new IntSummaryStatistics();
+            for (int row = from; row < to; row++) {
+                if (genders[row] == gender && agePredicate.test(ages[row])) {
+                    statistics.accept(ages[row]);
+                }
+            }
+            return statistics;
+        }
+    }
+
+    /**
+     * The same question as PersonListDeclarativeProcessing asks: max age of FEMALE
+     */
+    public static class ColumnarProcessing {
+        public static void main(String[] args) {
+            PersonTable table = PersonTable.of(persons);
+            System.out.println(table.maxAge(FEMALE));
+            System.out.println(table.names(FEMALE));
+
+            /* Tens of millions of rows: three primitive columns instead of 10^7 objects */
+            PersonTable big = new PersonTable();
+            for (int i = 0; i < 10_000_000; i++) {
+                Person person = persons.get(i % persons.size());
+                big.add(person.getName(), 18 + i % 80, person.getGender());
+            }
+            System.out.println(big.ageStatistics(FEMALE, age -> age > 60));
+            System.out.println(big.parallelAgeStatistics(FEMALE, age -> age > 60));
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Notified when an indexed field of a person changes, so indexes can follow.
+     */
+    interface PersonListener {
+        void ageChanged(Person person, int oldAge);
+
+        void genderChanged(Person person, Gender oldGender);
+    }
+
+    /**
+     * Person, that notifies its listener from setAge/setGender. Person of LambdasCE_001 stays a plain bean,
+     * persons are copied into IndexedPerson to be put into IndexedPersons.
+     */
+    static class IndexedPerson extends Person {
+        /* set and cleared by an index under its lock, read by setters in any thread */
+        volatile PersonListener listener;
+
+        IndexedPerson(String name, int age, Gender gender) {
+            super(name, age, gender);
+        }
+
+        static IndexedPerson of(Person person) {
+            return new IndexedPerson(person.getName(), person.getAge(), person.getGender());
+        }
+
+        @Override
+        public void setAge(int age) {
+            int oldAge = getAge();
+            super.setAge(age);
+            PersonListener listener = this.listener;
+            if (listener != null && oldAge != age) {
+                listener.ageChanged(this, oldAge);
+            }
+        }
+
+        @Override
+        public void setGender(Gender gender) {
+            Gender oldGender = getGender();
+            super.setGender(gender);
+            PersonListener listener = this.listener;
+            if (listener != null && oldGender != gender) {
+                listener.genderChanged(this, oldGender);
+            }
+        }
+    }
+
+    /**
+     * Person collection with secondary indexes, for populations that are queried much more often than changed.
+     * Persons are partitioned by gender (EnumMap), and every partition keeps a TreeMap from age to persons of that age.
+     * Max/min age is O(log n), range queries are O(log n + number of distinct ages in the range), that is small for ages.
+     * Indexed persons (IndexedPerson) notify the collection from setAge/setGender, so indexes stay correct after mutation.
+     * The age and gender, under which a person is indexed, are kept here and never re-read from a person, that
+     * may be changed by another thread meanwhile: a notification moves the person from the kept position
+     * to the current field values, and is ignored for a person, that was removed.
+     * A person can belong to one IndexedPersons at a time. Readers don't block each other.
+     */
+    static class IndexedPersons implements PersonListener {
+        private final Map<Person, IndexedAs> indexed = new IdentityHashMap<>();
+        private final Map<Gender, Set<Person>> byGender = new EnumMap<>(Gender.class);
+        private final Map<Gender, NavigableMap<Integer, Set<Person>>> byAge = new EnumMap<>(Gender.class);
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        IndexedPersons() {
+            for (Gender gender : Gender.values()) {
+                byGender.put(gender, newPersonSet());
+                byAge.put(gender, new TreeMap<>());
+            }
+        }
+
+        static IndexedPersons of(List<IndexedPerson> persons) {
+            IndexedPersons indexed = new IndexedPersons();
+            persons.forEach(indexed::add);
+            return indexed;
+        }
+
+        void add(IndexedPerson person) {
+            lock.writeLock().lock();
+            try {
+                if (person.listener != null && person.listener != this) {
+                    throw new IllegalStateException("Person " + person.getName() + " is already indexed by another collection");
+                }
+                if (!indexed.containsKey(person)) {
+                    person.listener = this;
+                    index(person, new IndexedAs(person.getGender(), person.getAge()));
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        boolean remove(IndexedPerson person) {
+            lock.writeLock().lock();
+            try {
+                IndexedAs position = indexed.remove(person);
+                if (position == null) {
+                    return false;
+                }
+                unindex(person, position);
+                person.listener = null;
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public void ageChanged(Person person, int oldAge) {
+            reindex(person);
+        }
+
+        @Override
+        public void genderChanged(Person person, Gender oldGender) {
+            reindex(person);
+        }
+
+        private void reindex(Person person) {
+            lock.writeLock().lock();
+            try {
+                IndexedAs position = indexed.get(person);
+                if (position != null) {
+                    unindex(person, position);
+                    index(person, new IndexedAs(person.getGender(), person.getAge()));
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        int count(Gender gender) {
+            lock.readLock().lock();
+            try {
+                return byGender.get(gender).size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        OptionalInt maxAge(Gender gender) {
+            lock.readLock().lock();
+            try {
+                NavigableMap<Integer, Set<Person>> ages = byAge.get(gender);
+                return ages.isEmpty() ? OptionalInt.empty() : OptionalInt.of(ages.lastKey());
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        OptionalInt minAge(Gender gender) {
+            lock.readLock().lock();
+            try {
+                NavigableMap<Integer, Set<Person>> ages = byAge.get(gender);
+                return ages.isEmpty() ? OptionalInt.empty() : OptionalInt.of(ages.firstKey());
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Number of persons of the gender with fromAge <= age <= toAge.
+         */
+        int countInAgeRange(Gender gender, int fromAge, int toAge) {
+            lock.readLock().lock();
+            try {
+                int count = 0;
+                for (Set<Person> sameAge : byAge.get(gender).subMap(fromAge, true, toAge, true).values()) {
+                    count += sameAge.size();
+                }
+                return count;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Persons of the gender with fromAge <= age <= toAge, youngest first.
+         */
+        List<Person> inAgeRange(Gender gender, int fromAge, int toAge) {
+            lock.readLock().lock();
+            try {
+                List<Person> result = new ArrayList<>();
+                byAge.get(gender).subMap(fromAge, true, toAge, true).values().forEach(result::addAll);
+                return result;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private void index(Person person, IndexedAs position) {
+            indexed.put(person, position);
+            byGender.get(position.gender).add(person);
+            byAge.get(position.gender).computeIfAbsent(position.age, a -> newPersonSet()).add(person);
+        }
+
+        private void unindex(Person person, IndexedAs position) {
+            byGender.get(position.gender).remove(person);
+            NavigableMap<Integer, Set<Person>> ages = byAge.get(position.gender);
+            Set<Person> sameAge = ages.get(position.age);
+            if (sameAge != null && sameAge.remove(person) && sameAge.isEmpty()) {
+                ages.remove(position.age);
+            }
+        }
+
+        /* gender and age, under which a person is in the indexes */
+        private static final class IndexedAs {
+            final Gender gender;
+            final int age;
+
+            IndexedAs(Gender gender, int age) {
+                this.gender = gender;
+                this.age = age;
+            }
+        }
+
+        /* persons are compared by identity, Person doesn't override equals */
+        private static Set<Person> newPersonSet() {
+            return Collections.newSetFromMap(new IdentityHashMap<>());
+        }
+    }
+
+    public static class IndexedProcessing {
+        public static void main(String[] args) {
+            List<IndexedPerson> tracked = persons.stream().map(IndexedPerson::of).collect(Collectors.toList());
+            IndexedPersons indexed = IndexedPersons.of(tracked);
+            System.out.println(indexed.maxAge(FEMALE));
+            System.out.println(indexed.countInAgeRange(MALE, 20, 50));
+
+            /* Index follows mutations */
+            Person hillary = tracked.get(4);
+            hillary.setAge(71);
+            System.out.println(indexed.maxAge(FEMALE));
+            hillary.setGender(MALE);
+            System.out.println(indexed.maxAge(FEMALE) + ", " + indexed.maxAge(MALE) + ", " + indexed.count(MALE));
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    enum Aggregate {COUNT, MIN, MAX, SUM, AVERAGE, NAMES}
+
+    /**
+     * Aggregates of one group. Only requested aggregates can be read, asking for another one throws.
+     */
+    static final class GroupStatistics {
+        private final Set<Aggregate> aggregates;
+        private final long count;
+        private final long sum;
+        private final int min;
+        private final int max;
+        private final List<String> names;
+
+        GroupStatistics(Set<Aggregate> aggregates, long count, long sum, int min, int max, List<String> names) {
+            this.aggregates = aggregates;
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+            this.names = names;
+        }
+
+        long getCount() {
+            check(Aggregate.COUNT);
+            return count;
+        }
+
+        int getMin() {
+            check(Aggregate.MIN);
+            return min;
+        }
+
+        int getMax() {
+            check(Aggregate.MAX);
+            return max;
+        }
+
+        long getSum() {
+            check(Aggregate.SUM);
+            return sum;
+        }
+
+        double getAverage() {
+            check(Aggregate.AVERAGE);
+            return (double) sum / count;
+        }
+
+        List<String> getNames() {
+            check(Aggregate.NAMES);
+            return names;
+        }
+
+        private void check(Aggregate aggregate) {
+            if (!aggregates.contains(aggregate)) {
+                throw new IllegalStateException(aggregate + " wasn't requested, requested: " + aggregates);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner joiner = new StringJoiner(", ", "{", "}");
+            for (Aggregate aggregate : aggregates) {
+                switch (aggregate) {
+                    case COUNT:
+                        joiner.add("count=" + count);
+                        break;
+                    case MIN:
+                        joiner.add("min=" + min);
+                        break;
+                    case MAX:
+                        joiner.add("max=" + max);
+                        break;
+                    case SUM:
+                        joiner.add("sum=" + sum);
+                        break;
+                    case AVERAGE:
+                        joiner.add("average=" + getAverage());
+                        break;
+                    case NAMES:
+                        joiner.add("names=" + names);
+                        break;
+                }
+            }
+            return joiner.toString();
+        }
+    }
+
+    /**
+     * Computes the requested aggregates for every enum key in a single pass.
+     * Instead of a separate stream per statistic (max age, count, average age, names) everything is accumulated
+     * into primitive arrays indexed by the key ordinal, so there is no map lookup and no boxing per element.
+     * Works with parallel streams, names keep the encounter order. Keys without elements are absent from the result.
+     */
+    static <T, K extends Enum<K>> Collector<T, ?, Map<K, GroupStatistics>> aggregatingBy(
+            Class<K> keyType, Function<? super T, K> classifier, ToIntFunction<? super T> value,
+            Function<? super T, String> name, Set<Aggregate> aggregates) {
+        K[] keys = keyType.getEnumConstants();
+        Set<Aggregate> requested = Collections.unmodifiableSet(EnumSet.copyOf(aggregates));
+        boolean collectNames = requested.contains(Aggregate.NAMES);
+        return Collector.of(
+                () -> new AggregateState(keys.length, collectNames),
+                (state, element) -> state.accept(classifier.apply(element).ordinal(), value.applyAsInt(element),
+                        collectNames ? name.apply(element) : null),
+                AggregateState::combine,
+                state -> state.toMap(keyType, keys, requested));
+    }
+
+    static final class AggregateState {
+        private final long[] counts;
+        private final long[] sums;
+        private final int[] mins;
+        private final int[] maxs;
+        private final List<List<String>> names;
+
+        AggregateState(int keys, boolean collectNames) {
+            counts = new long[keys];
+            sums = new long[keys];
+            mins = new int[keys];
+            maxs = new int[keys];
+            Arrays.fill(mins, Integer.MAX_VALUE);
+            Arrays.fill(maxs, Integer.MIN_VALUE);
+            names = collectNames ? new ArrayList<>(keys) : null;
+            for (int key = 0; collectNames && key < keys; key++) {
+                names.add(new ArrayList<>());
+            }
+        }
+
+        void accept(int key, int value, String name) {
+            counts[key]++;
+            sums[key] += value;
+            mins[key] = Math.min(mins[key], value);
+            maxs[key] = Math.max(maxs[key], value);
+            if (names != null) {
+                names.get(key).add(name);
+            }
+        }
+
+        AggregateState combine(AggregateState other) {
+            for (int key = 0; key < counts.length; key++) {
+                counts[key] += other.counts[key];
+                sums[key] += other.sums[key];
+                mins[key] = Math.min(mins[key], other.mins[key]);
+                maxs[key] = Math.max(maxs[key], other.maxs[key]);
+                if (names != null) {
+                    names.get(key).addAll(other.names.get(key));
+                }
+            }
+            return this;
+        }
+
+        <K extends Enum<K>> Map<K, GroupStatistics> toMap(Class<K> keyType, K[] keys, Set<Aggregate> aggregates) {
+            Map<K, GroupStatistics> result = new EnumMap<>(keyType);
+            for (int key = 0; key < keys.length; key++) {
+                if (counts[key] > 0) {
+                    result.put(keys[key], new GroupStatistics(aggregates, counts[key], sums[key], mins[key], maxs[key],
+                            names == null ? null : Collections.unmodifiableList(names.get(key))));
+                }
+            }
+            return result;
+        }
+    }
+
+    public static class SinglePassAggregation {
+        public static void main(String[] args) {
+            Map<Gender, GroupStatistics> statistics = persons.parallelStream()
+                    .collect(aggregatingBy(Gender.class, Person::getGender, Person::getAge, Person::getName,
+                            EnumSet.of(Aggregate.MAX, Aggregate.COUNT, Aggregate.AVERAGE, Aggregate.NAMES)));
+
+            statistics.forEach((gender, groupStatistics) -> System.out.println(gender + " " + groupStatistics));
+            System.out.println(statistics.get(FEMALE).getMax());
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.ua.codespace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.ua.codespace.LambdasCE_001.User;
+
+import static java.util.Comparator.comparing;
+
+/**
+ * Sorting lists, that don't fit in the heap.
+ */
+public class LambdasCE_003 {
+
+    interface Serializer<T> {
+        void write(T value, DataOutput out) throws IOException;
+
+        T read(DataInput in) throws IOException;
+    }
+
+    /**
+     * External merge sort.
+     * Input is read in runs of at most runSize elements, every run is sorted with Arrays.parallelSort
+     * and written to a temporary file. Then runs are merged with a k-way heap merge, at most mergeWidth files at once
+     * (more runs are merged in several passes), and the result is streamed lazily from the files.
+     * So at most runSize elements are in memory while sorting, and mergeWidth elements (plus a read buffer per file)
+     * while merging, whatever the input size is.
+     * Input that fits into one run is sorted in memory and never touches the disk.
+     * The returned stream must be closed, closing removes temporary files.
+     */
+    static class ExternalSorter<T> {
+        static final int BUFFER_SIZE = 64 * 1024;
+
+        private final Comparator<? super T> comparator;
+        private final Serializer<T> serializer;
+        private final int runSize;
+        private final int mergeWidth;
+        private final Path tempDirectory;
+
+        ExternalSorter(Comparator<? super T> comparator, Serializer<T> serializer, int runSize, int mergeWidth, Path tempDirectory) {
+            if (runSize <= 0 || mergeWidth < 2) {
+                throw new IllegalArgumentException("runSize must be positive and mergeWidth at least 2");
+            }
+            this.comparator = comparator;
+            this.serializer = serializer;
+            this.runSize = runSize;
+            this.mergeWidth = mergeWidth;
+            this.tempDirectory = tempDirectory;
+        }
+
+        Stream<T> sort(Stream<T> input) throws IOException {
+            try (Stream<T> source = input) {
+                return sort(source.iterator());
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Stream<T> sort(Iterator<? extends T> input) throws IOException {
+            T[] buffer = (T[]) new Object[runSize];
+            List<Run> runs = new ArrayList<>();
+            List<Run> created = new ArrayList<>();
+            try {
+                int size = 0;
+                while (input.hasNext()) {
+                    /* a full buffer is spilled only when there is more input, so one run is sorted in memory */
+                    if (size == runSize) {
+                        runs.add(spill(buffer, size, created));
+                        size = 0;
+                    }
+                    buffer[size++] = input.next();
+                }
+                if (runs.isEmpty()) {
+                    Arrays.parallelSort(buffer, 0, size, comparator);
+                    return Arrays.stream(buffer, 0, size);
+                }
+                if (size > 0) {
+                    runs.add(spill(buffer, size, created));
+                }
+                buffer = null;
+
+                while (runs.size() > mergeWidth) {
+                    List<Run> merged = new ArrayList<>();
+                    for (int from = 0; from < runs.size(); from += mergeWidth) {
+                        List<Run> group = runs.subList(from, Math.min(from + mergeWidth, runs.size()));
+                        if (group.size() == 1) {
+                            merged.add(group.get(0));
+                        } else {
+                            try (MergeIterator merge = new MergeIterator(group)) {
+                                merged.add(write(merge, runLength(group), created));
+                            }
+                        }
+                    }
+                    runs = merged;
+                }
+                MergeIterator merge = new MergeIterator(runs);
+                return StreamSupport.stream(Spliterators.spliterator(merge, runLength(runs), Spliterator.ORDERED), false)
+                        .onClose(merge::close);
+            } catch (IOException | RuntimeException e) {
+                for (Run run : created) {
+                    try {
+                        run.delete();
+                    } catch (UncheckedIOException deleteFailure) {
+                        e.addSuppressed(deleteFailure.getCause());
+                    }
+                }
+                throw e;
+            }
+        }
+
+        private Run spill(T[] buffer, int size, List<Run> created) throws IOException {
+            Arrays.parallelSort(buffer, 0, size, comparator);
+            Run run = write(Arrays.asList(buffer).subList(0, size).iterator(), size, created);
+            Arrays.fill(buffer, 0, size, null);
+            return run;
+        }
+
+        private Run write(Iterator<T> values, long count, List<Run> created) throws IOException {
+            Path path = Files.createTempFile(tempDirectory, "sort-run", ".bin");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE))) {
+                while (values.hasNext()) {
+                    serializer.write(values.next(), out);
+                }
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(path);
+                throw e;
+            }
+            Run run = new Run(path, count);
+            created.add(run);
+            return run;
+        }
+
+        private static long runLength(List<Run> runs) {
+            return runs.stream().mapToLong(run -> run.count).sum();
+        }
+
+        static final class Run {
+            final Path path;
+            final long count;
+
+            Run(Path path, long count) {
+                this.path = path;
+                this.count = count;
+            }
+
+            void delete() {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        /**
+         * k-way merge of sorted runs. Equal elements come in run order, so the sort is stable.
+         * Run files are deleted when the merge is closed.
+         */
+        final class MergeIterator implements Iterator<T>, Closeable {
+            private final List<Run> runs;
+            private final DataInputStream[] inputs;
+            private final long[] remaining;
+            private final PriorityQueue<Head> heads;
+
+            final class Head {
+                final T value;
+                final int run;
+
+                Head(T value, int run) {
+                    this.value = value;
+                    this.run = run;
+                }
+            }
+
+            MergeIterator(List<Run> runs) throws IOException {
+                this.runs = new ArrayList<>(runs);
+                this.inputs = new DataInputStream[runs.size()];
+                this.remaining = new long[runs.size()];
+                this.heads = new PriorityQueue<>(runs.size(), (h1, h2) -> {
+                    int result = comparator.compare(h1.value, h2.value);
+                    return result != 0 ? result : Integer.compare(h1.run, h2.run);
+                });
+                try {
+                    for (int i = 0; i < runs.size(); i++) {
+                        inputs[i] = new DataInputStream(new BufferedInputStream(Files.newInputStream(runs.get(i).path), BUFFER_SIZE));
+                        remaining[i] = runs.get(i).count;
+                        advance(i);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    closeAfter(e);
+                    throw e;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                Head head = heads.poll();
+                if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    advance(head.run);
+                } catch (IOException e) {
+                    closeAfter(e);
+                    throw new UncheckedIOException(e);
+                }
+                return head.value;
+            }
+
+            private void advance(int run) throws IOException {
+                if (remaining[run] > 0) {
+                    remaining[run]--;
+                    heads.add(new Head(serializer.read(inputs[run]), run));
+                }
+            }
+
+            /**
+             * Closes every input and deletes every run file, even if some of them fail.
+             * The first failure is thrown, the others are suppressed by it.
+             */
+            @Override
+            public void close() {
+                heads.clear();
+                IOException failure = null;
+                for (int i = 0; i < inputs.length; i++) {
+                    try {
+                        if (inputs[i] != null) {
+                            inputs[i].close();
+                        }
+                    } catch (IOException e) {
+                        failure = suppress(failure, e);
+                    }
+                    try {
+                        runs.get(i).delete();
+                    } catch (UncheckedIOException e) {
+                        failure = suppress(failure, e.getCause());
+                    }
+                }
+                if (failure != null) {
+                    throw new UncheckedIOException(failure);
+                }
+            }
+
+            private IOException suppress(IOException first, IOException next) {
+                if (first == null) {
+                    return next;
+                }
+                first.addSuppressed(next);
+                return first;
+            }
+
+            private void closeAfter(Exception cause) {
+                try {
+                    close();
+                } catch (UncheckedIOException e) {
+                    cause.addSuppressed(e.getCause());
+                }
+            }
+        }
+    }
+
+    static final Serializer<User> USER_SERIALIZER = new Serializer<User>() {
+        @Override
+        public void write(User user, DataOutput out) throws IOException {
+            out.writeUTF(user.getfirstName());
+        }
+
+        @Override
+        public User read(DataInput in) throws IOException {
+            return new User(in.readUTF());
+        }
+    };
+
+    /**
+     * Summary_001 sorts users with users.sort(comparing(User::getfirstName)), the same comparator works here
+     */
+    public static class ExternalSort {
+        public static void main(String[] args) throws IOException {
+            Random random = new Random(1);
+            Stream<User> users = Stream.generate(() -> new User("User" + random.nextInt(1_000_000))).limit(200_000);
+
+            /* 200_000 users, but not more than 10_000 in memory: 20 runs, merged in two passes */
+            Path tempDirectory = Files.createTempDirectory("users");
+            ExternalSorter<User> sorter = new ExternalSorter<>(comparing(User::getfirstName), USER_SERIALIZER,
+                    10_000, 8, tempDirectory);
+
+            try (Stream<User> sorted = sorter.sort(users)) {
+                sorted.skip(100_000).limit(5).forEach(System.out::println);
+            } finally {
+                Files.delete(tempDirectory);
+            }
+        }
+    }
+}
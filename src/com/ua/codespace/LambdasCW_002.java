@@ -0,0 +1,501 @@
+package com.ua.codespace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.ua.codespace.LambdasCW_001.User;
+import com.ua.codespace.LambdasCW_001.UserRelationshipValidator;
+import com.ua.codespace.StreamsPrimitive_001.LongCountMap;
+
+/**
+ * Friend relationships of LambdasCW_001.User at scale.
+ * User.isFriend is friends.contains(user): a linear scan, that calls User.equals (boxed Long and String compare)
+ * for every friend.
+ */
+public class LambdasCW_002 {
+
+    interface BatchRelationshipValidator {
+        /**
+         * Returns result[i] = validate(firstIds[i], secondIds[i]).
+         */
+        boolean[] validate(long[] firstIds, long[] secondIds);
+    }
+
+    /**
+     * Immutable friend graph in CSR (compressed sparse row) form:
+     * - ids: sorted ids of all users, user i of the graph has id ids[i];
+     * - friends[offsets[i] .. offsets[i + 1]): sorted ids of friends of user i.
+     * isFriend is a lookup of the user (direct index when ids are contiguous, binary search otherwise)
+     * and a binary search in its friend list: O(log n) without any object access.
+     * Like User.isFriend, relationship is directed: a is a friend of b when b is in the friend list of a,
+     * and a user can be a friend of itself.
+     * Users are identified by id only: User.equals also compares emails, so users with the same id
+     * and different emails are rejected by of(users).
+     */
+    static final class FriendGraph implements BatchRelationshipValidator {
+        static final int PARALLEL_THRESHOLD = 1 << 12;
+
+        private final long[] ids;
+        private final int[] offsets;
+        private final long[] friends;
+        private final boolean contiguous;
+
+        private FriendGraph(long[] ids, int[] offsets, long[] friends) {
+            this.ids = ids;
+            this.offsets = offsets;
+            this.friends = friends;
+            this.contiguous = ids.length == 0 || ids[ids.length - 1] - ids[0] == ids.length - 1;
+        }
+
+        /**
+         * Builds the graph from friend lists of users. Users without friend list have no friends.
+         * Throws IllegalArgumentException, when two users (or friends) have the same id, but different emails.
+         */
+        static FriendGraph of(Collection<User> users) {
+            Map<Long, String> emails = new HashMap<>();
+            long[] userIds = new long[users.size()];
+            int edges = 0;
+            int index = 0;
+            for (User user : users) {
+                userIds[index++] = idOf(user, emails);
+                edges += user.getFriends() == null ? 0 : user.getFriends().size();
+            }
+            long[] from = new long[edges];
+            long[] to = new long[edges];
+            int edge = 0;
+            for (User user : users) {
+                if (user.getFriends() != null) {
+                    for (User friend : user.getFriends()) {
+                        from[edge] = user.getId();
+                        to[edge++] = idOf(friend, emails);
+                    }
+                }
+            }
+            return of(userIds, from, to);
+        }
+
+        /**
+         * Builds the graph from edges from[i] -> to[i]. Duplicate edges are stored once.
+         */
+        static FriendGraph of(long[] from, long[] to) {
+            return of(new long[0], from, to);
+        }
+
+        /* userIds are users, that may have no edges */
+        private static FriendGraph of(long[] userIds, long[] from, long[] to) {
+            if (from.length != to.length) {
+                throw new IllegalArgumentException("from and to must have the same length");
+            }
+            long[] ids = LongArrays.distinct(LongArrays.concat(userIds, LongArrays.concat(from, to)));
+            boolean contiguous = ids.length == 0 || ids[ids.length - 1] - ids[0] == ids.length - 1;
+            int[] sources = new int[from.length];
+            int[] degrees = new int[ids.length + 1];
+            for (int i = 0; i < from.length; i++) {
+                sources[i] = contiguous ? (int) (from[i] - ids[0]) : Arrays.binarySearch(ids, from[i]);
+                degrees[sources[i] + 1]++;
+            }
+            int[] offsets = new int[ids.length + 1];
+            for (int i = 1; i <= ids.length; i++) {
+                offsets[i] = offsets[i - 1] + degrees[i];
+            }
+            long[] adjacency = new long[offsets[ids.length]];
+            int[] fill = Arrays.copyOf(offsets, ids.length);
+            for (int i = 0; i < from.length; i++) {
+                adjacency[fill[sources[i]]++] = to[i];
+            }
+            /* sort and deduplicate every friend list, then compact */
+            int[] compactOffsets = new int[ids.length + 1];
+            int size = 0;
+            for (int user = 0; user < ids.length; user++) {
+                Arrays.sort(adjacency, offsets[user], offsets[user + 1]);
+                for (int i = offsets[user]; i < offsets[user + 1]; i++) {
+                    if (i == offsets[user] || adjacency[i] != adjacency[i - 1]) {
+                        adjacency[size++] = adjacency[i];
+                    }
+                }
+                compactOffsets[user + 1] = size;
+            }
+            return new FriendGraph(ids, compactOffsets, Arrays.copyOf(adjacency, size));
+        }
+
+        /**
+         * Returns the graph, where every friendship goes both ways.
+         */
+        FriendGraph undirected() {
+            long[] from = new long[friends.length * 2];
+            long[] to = new long[from.length];
+            int edge = 0;
+            for (int user = 0; user < ids.length; user++) {
+                for (int i = offsets[user]; i < offsets[user + 1]; i++) {
+                    from[edge] = ids[user];
+                    to[edge++] = friends[i];
+                    from[edge] = friends[i];
+                    to[edge++] = ids[user];
+                }
+            }
+            return of(ids.clone(), from, to);
+        }
+
+        int userCount() {
+            return ids.length;
+        }
+
+        long edgeCount() {
+            return friends.length;
+        }
+
+        boolean isFriend(User user, User friend) {
+            return isFriend(idOf(user), idOf(friend));
+        }
+
+        boolean isFriend(long userId, long friendId) {
+            int user = indexOf(userId);
+            return user >= 0 && Arrays.binarySearch(friends, offsets[user], offsets[user + 1], friendId) >= 0;
+        }
+
+        /**
+         * Sorted ids of friends of the user, empty for unknown users.
+         */
+        long[] friendsOf(long userId) {
+            int user = indexOf(userId);
+            return user < 0 ? new long[0] : Arrays.copyOfRange(friends, offsets[user], offsets[user + 1]);
+        }
+
+        UserRelationshipValidator validator() {
+            return this::isFriend;
+        }
+
+        /**
+         * Checks all pairs, big batches are checked in parallel.
+         */
+        @Override
+        public boolean[] validate(long[] userIds, long[] friendIds) {
+            if (userIds.length != friendIds.length) {
+                throw new IllegalArgumentException("userIds and friendIds must have the same length");
+            }
+            boolean[] result = new boolean[userIds.length];
+            IntStream pairs = IntStream.range(0, userIds.length);
+            if (userIds.length >= PARALLEL_THRESHOLD) {
+                pairs = pairs.parallel();
+            }
+            pairs.forEach(i -> result[i] = isFriend(userIds[i], friendIds[i]));
+            return result;
+        }
+
+        int indexOf(long userId) {
+            if (contiguous) {
+                long index = userId - (ids.length == 0 ? 0 : ids[0]);
+                return index >= 0 && index < ids.length ? (int) index : -1;
+            }
+            int index = Arrays.binarySearch(ids, userId);
+            return index >= 0 ? index : -1;
+        }
+
+        long idAt(int index) {
+            return ids[index];
+        }
+
+        int degree(int index) {
+            return offsets[index + 1] - offsets[index];
+        }
+
+        private static long idOf(User user) {
+            if (user.getId() == null) {
+                throw new IllegalArgumentException("User " + user.getEmail() + " has no id");
+            }
+            return user.getId();
+        }
+
+        private static long idOf(User user, Map<Long, String> emails) {
+            long id = idOf(user);
+            if (!emails.containsKey(id)) {
+                emails.put(id, user.getEmail());
+            } else if (!Objects.equals(emails.get(id), user.getEmail())) {
+                throw new IllegalArgumentException("Users " + emails.get(id) + " and " + user.getEmail() + " have the same id " + id);
+            }
+            return id;
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    static final class Suggestion {
+        final long userId;
+        final long mutualFriends;
+
+        Suggestion(long userId, long mutualFriends) {
+            this.userId = userId;
+            this.mutualFriends = mutualFriends;
+        }
+
+        @Override
+        public String toString() {
+            return userId + " (" + mutualFriends + " mutual)";
+        }
+    }
+
+    /**
+     * Queries, that need more than one friend list: mutual friends, friends of friends, triangles.
+     * All of them intersect sorted friend lists of the FriendGraph instead of nesting getFriends() loops.
+     * <p>
+     * friendsOfFriends counts candidates in primitive maps. Their size is limited by memoryBudget (number of entries
+     * of all maps, that exist at the same time): when the friends of friends may not fit, candidate ids are split
+     * into hash partitions, that are counted one by one on every worker.
+     */
+    static final class FriendQueries {
+        /* intersection switches from merging to binary search, when one list is that many times longer */
+        static final int GALLOP_RATIO = 16;
+
+        private final FriendGraph graph;
+        private final long memoryBudget;
+
+        FriendQueries(FriendGraph graph, long memoryBudget) {
+            if (memoryBudget <= 0) {
+                throw new IllegalArgumentException("memoryBudget must be positive: " + memoryBudget);
+            }
+            this.graph = graph;
+            this.memoryBudget = memoryBudget;
+        }
+
+        /**
+         * Sorted ids of users, that are friends of both a and b.
+         */
+        long[] mutualFriends(long a, long b) {
+            int first = graph.indexOf(a);
+            int second = graph.indexOf(b);
+            if (first < 0 || second < 0) {
+                return new long[0];
+            }
+            long[] result = new long[Math.min(graph.degree(first), graph.degree(second))];
+            int size = intersect(first, second, Long.MIN_VALUE, result);
+            return Arrays.copyOf(result, size);
+        }
+
+        long mutualFriendCount(long a, long b) {
+            int first = graph.indexOf(a);
+            int second = graph.indexOf(b);
+            return first < 0 || second < 0 ? 0 : intersect(first, second, Long.MIN_VALUE, null);
+        }
+
+        /**
+         * Users, that are not friends of the user yet, but are friends of its friends,
+         * ranked by the number of mutual friends (ties by smaller id). Returns at most limit suggestions.
+         */
+        List<Suggestion> friendsOfFriends(long userId, int limit) {
+            int user = graph.indexOf(userId);
+            if (user < 0 || limit <= 0) {
+                return new ArrayList<>();
+            }
+            long candidates = 0;
+            for (int i = graph.offsets[user]; i < graph.offsets[user + 1]; i++) {
+                int friend = graph.indexOf(graph.friends[i]);
+                candidates += friend < 0 ? 0 : graph.degree(friend);
+            }
+            long budgetPerWorker = Math.max(1, memoryBudget / (ForkJoinPool.commonPool().getParallelism() + 1));
+            int partitions = (int) Math.max(1, Math.min(Integer.MAX_VALUE, (candidates + budgetPerWorker - 1) / budgetPerWorker));
+
+            Comparator<Suggestion> ranking = Comparator.<Suggestion>comparingLong(suggestion -> suggestion.mutualFriends)
+                    .reversed()
+                    .thenComparingLong(suggestion -> suggestion.userId);
+            return IntStream.range(0, partitions)
+                    .parallel()
+                    .mapToObj(partition -> friendsOfFriends(user, partition, partitions, limit, ranking))
+                    .flatMap(List::stream)
+                    .sorted(ranking)
+                    .limit(limit)
+                    .collect(Collectors.toList());
+        }
+
+        private List<Suggestion> friendsOfFriends(int user, int partition, int partitions, int limit, Comparator<Suggestion> ranking) {
+            long userId = graph.idAt(user);
+            LongCountMap counts = new LongCountMap();
+            for (int i = graph.offsets[user]; i < graph.offsets[user + 1]; i++) {
+                int friend = graph.indexOf(graph.friends[i]);
+                if (friend < 0) {
+                    continue;
+                }
+                for (int j = graph.offsets[friend]; j < graph.offsets[friend + 1]; j++) {
+                    long candidate = graph.friends[j];
+                    if (Math.floorMod(Long.hashCode(candidate * 0x9E3779B97F4A7C15L), partitions) == partition) {
+                        counts.increment(candidate);
+                    }
+                }
+            }
+            /* keep the best suggestions only: a min-heap by ranking */
+            PriorityQueue<Suggestion> best = new PriorityQueue<>(limit + 1, ranking.reversed());
+            counts.forEach((candidate, mutualFriends) -> {
+                if (candidate != userId && !graph.isFriend(userId, candidate)) {
+                    best.add(new Suggestion(candidate, mutualFriends));
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                }
+            });
+            return new ArrayList<>(best);
+        }
+
+        /**
+         * Number of triangles (three users, that are all friends with each other) of the undirected graph.
+         * Every edge (u, v), u < v, contributes the number of common friends w > v, so every triangle is counted once.
+         * Users are processed in parallel, nothing but counters is allocated.
+         */
+        static long triangles(FriendGraph graph) {
+            FriendQueries queries = new FriendQueries(graph.undirected(), 1);
+            FriendGraph undirected = queries.graph;
+            return IntStream.range(0, undirected.userCount())
+                    .parallel()
+                    .mapToLong(u -> {
+                        long count = 0;
+                        long uId = undirected.idAt(u);
+                        for (int i = undirected.offsets[u]; i < undirected.offsets[u + 1]; i++) {
+                            long vId = undirected.friends[i];
+                            if (vId > uId) {
+                                count += queries.intersect(u, undirected.indexOf(vId), vId, null);
+                            }
+                        }
+                        return count;
+                    })
+                    .sum();
+        }
+
+        /**
+         * Intersects friend lists of users first and second, counting only ids greater than after.
+         * Writes the common ids to result, when it is not null, and returns their number.
+         */
+        int intersect(int first, int second, long after, long[] result) {
+            long[] friends = graph.friends;
+            int aFrom = graph.offsets[first];
+            int aTo = graph.offsets[first + 1];
+            int bFrom = graph.offsets[second];
+            int bTo = graph.offsets[second + 1];
+            if (aTo - aFrom > bTo - bFrom) {
+                int from = aFrom;
+                int to = aTo;
+                aFrom = bFrom;
+                aTo = bTo;
+                bFrom = from;
+                bTo = to;
+            }
+            int size = 0;
+            if ((long) (aTo - aFrom) * GALLOP_RATIO < bTo - bFrom) {
+                /* short list against a long one: binary search of every element */
+                for (int i = aFrom; i < aTo; i++) {
+                    if (friends[i] > after && Arrays.binarySearch(friends, bFrom, bTo, friends[i]) >= 0) {
+                        if (result != null) {
+                            result[size] = friends[i];
+                        }
+                        size++;
+                    }
+                }
+                return size;
+            }
+            int i = aFrom;
+            int j = bFrom;
+            while (i < aTo && j < bTo) {
+                if (friends[i] < friends[j]) {
+                    i++;
+                } else if (friends[i] > friends[j]) {
+                    j++;
+                } else {
+                    if (friends[i] > after) {
+                        if (result != null) {
+                            result[size] = friends[i];
+                        }
+                        size++;
+                    }
+                    i++;
+                    j++;
+                }
+            }
+            return size;
+        }
+    }
+
+    static final class LongArrays {
+        static long[] concat(long[] first, long[] second) {
+            long[] result = Arrays.copyOf(first, first.length + second.length);
+            System.arraycopy(second, 0, result, first.length, second.length);
+            return result;
+        }
+
+        /**
+         * Sorts the array in place and returns its distinct values.
+         */
+        static long[] distinct(long[] values) {
+            Arrays.parallelSort(values);
+            int size = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (i == 0 || values[i] != values[i - 1]) {
+                    values[size++] = values[i];
+                }
+            }
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    public static class CompactFriendGraph {
+        public static void main(String[] args) {
+            User alice = new User(1L, "alice@mail.com");
+            User bob = new User(2L, "bob@mail.com");
+            User carol = new User(3L, "carol@mail.com");
+            alice.setFriends(Arrays.asList(bob, carol));
+            bob.setFriends(Arrays.asList(alice));
+            carol.setFriends(new ArrayList<>());
+
+            FriendGraph graph = FriendGraph.of(Arrays.asList(alice, bob, carol));
+            UserRelationshipValidator isFriendValidator = graph.validator();
+            System.out.println(isFriendValidator.validate(alice, carol) + " " + isFriendValidator.validate(carol, alice));
+
+            /* A million random pairs against a graph of 100_000 users with 20 friends each */
+            int users = 100_000;
+            long[] from = new long[users * 20];
+            long[] to = new long[users * 20];
+            Random random = new Random(1);
+            for (int i = 0; i < from.length; i++) {
+                from[i] = i / 20;
+                to[i] = random.nextInt(users);
+            }
+            FriendGraph big = FriendGraph.of(from, to);
+            long[] first = random.longs(1_000_000, 0, users).toArray();
+            long[] second = random.longs(1_000_000, 0, users).toArray();
+            boolean[] result = big.validate(first, second);
+            System.out.println(IntStream.range(0, result.length).filter(i -> result[i]).count() + " of " + result.length);
+        }
+    }
+
+    public static class MutualFriends {
+        public static void main(String[] args) {
+            /* 1 - 2 - 3 - 1 is a triangle, 4 knows 2 and 3 */
+            FriendGraph graph = FriendGraph.of(new long[]{1, 2, 3, 4, 4}, new long[]{2, 3, 1, 2, 3}).undirected();
+            FriendQueries queries = new FriendQueries(graph, 1_000_000);
+            System.out.println(Arrays.toString(queries.mutualFriends(1, 4)));
+            System.out.println(queries.friendsOfFriends(1, 10));
+            System.out.println(FriendQueries.triangles(graph));
+
+            /* 100_000 users with 20 random friends each, a tiny budget forces partitioning */
+            int users = 100_000;
+            long[] from = new long[users * 20];
+            long[] to = new long[users * 20];
+            Random random = new Random(1);
+            for (int i = 0; i < from.length; i++) {
+                from[i] = i / 20;
+                to[i] = random.nextInt(users);
+            }
+            FriendGraph big = FriendGraph.of(from, to).undirected();
+            System.out.println(new FriendQueries(big, 100).friendsOfFriends(0, 5));
+            System.out.println(new FriendQueries(big, 10_000_000).friendsOfFriends(0, 5));
+            System.out.println(FriendQueries.triangles(big));
+        }
+    }
+}
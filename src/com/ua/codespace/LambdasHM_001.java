@@ -1,30 +1,268 @@
 package com.ua.codespace;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.Function;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongUnaryOperator;
+import java.util.function.UnaryOperator;
 
 public class LambdasHM_001 {
 
     /**
      * Function Factory that allows to manage function by string names.
      */
-    static class FunctionFactory<T, R> {
-        private Map<String, Function<T, R>> functionMap = new HashMap<>();
+    static class FunctionFactory<T, R> extends NamedFunctions<Function<T, R>> {
+    }
+
+    /**
+     * Function Factory for functions, which result is of the same type as the argument, so they can be piped.
+     */
+    static class UnaryFunctionFactory<T> extends PipedFunctions<UnaryOperator<T>> {
+        @Override
+        protected UnaryOperator<T> compose(UnaryOperator<T> first, UnaryOperator<T> second) {
+            return value -> second.apply(first.apply(value));
+        }
+    }
+
+    /**
+     * The same factories for primitive functions, so arithmetic doesn't box the argument and the result on every call.
+     */
+    static class IntFunctionFactory extends PipedFunctions<IntUnaryOperator> {
+        @Override
+        protected IntUnaryOperator compose(IntUnaryOperator first, IntUnaryOperator second) {
+            return first.andThen(second);
+        }
+
+        /**
+         * Applies a function (or a pipeline) to every element of the array in place.
+         */
+        public void applyAll(String name, int[] values) {
+            applyAll(name, values, values);
+        }
+
+        /**
+         * Writes function(source[i]) to destination[i]. Big arrays are split between fork-join workers.
+         */
+        public void applyAll(String name, int[] source, int[] destination) {
+            IntUnaryOperator function = getFunction(name);
+            checkLengths(source.length, destination.length);
+            forRange(source.length, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    destination[i] = function.applyAsInt(source[i]);
+                }
+            });
+        }
+    }
+
+    static class LongFunctionFactory extends PipedFunctions<LongUnaryOperator> {
+        @Override
+        protected LongUnaryOperator compose(LongUnaryOperator first, LongUnaryOperator second) {
+            return first.andThen(second);
+        }
+
+        public void applyAll(String name, long[] values) {
+            applyAll(name, values, values);
+        }
+
+        public void applyAll(String name, long[] source, long[] destination) {
+            LongUnaryOperator function = getFunction(name);
+            checkLengths(source.length, destination.length);
+            forRange(source.length, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    destination[i] = function.applyAsLong(source[i]);
+                }
+            });
+        }
+    }
+
+    static class DoubleFunctionFactory extends PipedFunctions<DoubleUnaryOperator> {
+        @Override
+        protected DoubleUnaryOperator compose(DoubleUnaryOperator first, DoubleUnaryOperator second) {
+            return first.andThen(second);
+        }
 
-        public void addFunction(String name, Function<T, R> function) {
-            functionMap.put(name, function);
+        public void applyAll(String name, double[] values) {
+            applyAll(name, values, values);
         }
 
-        public Function<T, R> getFunction(String name) {
-            if (functionMap.containsKey(name)) {
-                return functionMap.get(name);
+        public void applyAll(String name, double[] source, double[] destination) {
+            DoubleUnaryOperator function = getFunction(name);
+            checkLengths(source.length, destination.length);
+            forRange(source.length, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    destination[i] = function.applyAsDouble(source[i]);
+                }
+            });
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Bulk apply: one lookup and a tight loop over the array instead of a lookup and a call per value.
+     * Arrays shorter than PARALLEL_THRESHOLD are processed in the calling thread.
+     */
+    static final int PARALLEL_THRESHOLD = 1 << 14;
+
+    interface RangeAction {
+        void apply(int from, int to);
+    }
+
+    static void forRange(int length, RangeAction action) {
+        if (length < PARALLEL_THRESHOLD) {
+            action.apply(0, length);
+        } else {
+            ForkJoinPool.commonPool().invoke(new RangeTask(action, 0, length));
+        }
+    }
+
+    static void checkLengths(int sourceLength, int destinationLength) {
+        if (destinationLength < sourceLength) {
+            throw new IllegalArgumentException("Destination is shorter than source: " + destinationLength + " < " + sourceLength);
+        }
+    }
+
+    static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RangeAction action;
+        private final int from;
+        private final int to;
+
+        RangeTask(RangeAction action, int from, int to) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                action.apply(from, to);
             } else {
-                throw new InvalidFunctionNameException(name);
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeTask(action, from, middle), new RangeTask(action, middle, to));
+            }
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Registry of functions of type F by string names, the common part of all function factories.
+     * <p>
+     * Safe to share between threads without locks: every change replaces the registry (copy-on-write),
+     * so getFunction is one volatile read and one hash lookup. Names, that are not functions themselves,
+     * are passed to resolve, and what it returns is kept in the registry under the requested name,
+     * so next lookups of the name cost the same single lookup. Adding a function drops these names.
+     */
+    abstract static class NamedFunctions<F> {
+        static final String PIPE = "|";
+        /* resolved names over this number are resolved on every request, so arbitrary names can't fill the memory */
+        static final int MAX_RESOLVED_NAMES = 1024;
+
+        private final AtomicReference<Registry> registry = new AtomicReference<>(new Registry(Collections.emptyMap()));
+
+        public void addFunction(String name, F function) {
+            if (name.contains(PIPE)) {
+                throw new IllegalArgumentException("Function name can't contain '" + PIPE + "': " + name);
+            }
+            Objects.requireNonNull(function, "function");
+            Registry current;
+            Map<String, F> updated;
+            do {
+                current = registry.get();
+                updated = new HashMap<>(current.functions);
+                updated.put(name, function);
+            } while (!registry.compareAndSet(current, new Registry(Collections.unmodifiableMap(updated))));
+        }
+
+        public F getFunction(String name) {
+            return registry.get().lookup(name);
+        }
+
+        /**
+         * Returns a function for a name, that is not added, using lookup for other names of the same registry.
+         * There are no such names by default.
+         */
+        protected F resolve(String name, Function<String, F> lookup) {
+            throw new InvalidFunctionNameException(name);
+        }
+
+        private final class Registry {
+            final Map<String, F> functions;
+            final ConcurrentHashMap<String, F> names;
+            final AtomicInteger resolvedNames = new AtomicInteger();
+
+            Registry(Map<String, F> functions) {
+                this.functions = functions;
+                this.names = new ConcurrentHashMap<>(functions);
+            }
+
+            F lookup(String name) {
+                F function = names.get(name);
+                if (function != null) {
+                    return function;
+                }
+                function = resolve(name, this::lookup);
+                if (resolvedNames.incrementAndGet() > MAX_RESOLVED_NAMES) {
+                    resolvedNames.decrementAndGet();
+                    return function;
+                }
+                F cached = names.putIfAbsent(name, function);
+                if (cached != null) {
+                    resolvedNames.decrementAndGet();
+                    return cached;
+                }
+                return function;
             }
         }
     }
 
+    /**
+     * Registry, that also resolves pipelines: a name like "square|increment|abs" is the functions applied
+     * from left to right. Spaces around the names don't matter, "square | increment" is resolved to the same
+     * composed function as "square|increment", which is compiled once for the registry.
+     */
+    abstract static class PipedFunctions<F> extends NamedFunctions<F> {
+
+        /**
+         * Returns a function, that applies first, and then second to its result.
+         */
+        protected abstract F compose(F first, F second);
+
+        @Override
+        protected F resolve(String pipeline, Function<String, F> lookup) {
+            if (!pipeline.contains(PIPE)) {
+                throw new InvalidFunctionNameException(pipeline);
+            }
+            String[] names = pipeline.split("\\" + PIPE, -1);
+            for (int i = 0; i < names.length; i++) {
+                names[i] = names[i].trim();
+            }
+            String normalized = String.join(PIPE, names);
+            if (!normalized.equals(pipeline)) {
+                return lookup.apply(normalized);
+            }
+            F compiled = null;
+            for (String name : names) {
+                F function = lookup.apply(name);
+                compiled = compiled == null ? function : compose(compiled, function);
+            }
+            return compiled;
+        }
+    }
+
     static class InvalidFunctionNameException extends RuntimeException {
         public InvalidFunctionNameException(String functionName) {
             super("Function " + functionName + " doesn't exist.");
@@ -45,6 +283,75 @@ public class LambdasHM_001 {
 
     }
 
-}
+    /**
+     * Named pipelines: the composed function is built once and then resolved by its name as any other function.
+     */
+    public static class Pipelines {
+        public static void main(String[] args) {
+            UnaryFunctionFactory<Integer> functionFactory = new UnaryFunctionFactory<>();
+            functionFactory.addFunction("square", x -> x * x);
+            functionFactory.addFunction("increment", x -> x + 1);
+            functionFactory.addFunction("negative", x -> -x);
+            functionFactory.addFunction("abs", Math::abs);
+
+            UnaryOperator<Integer> pipeline = functionFactory.getFunction("square|increment|negative");
+            System.out.println(pipeline.apply(5));
+            System.out.println(pipeline == functionFactory.getFunction("square|increment|negative"));
+            System.out.println(pipeline == functionFactory.getFunction("square | increment | negative"));
+            System.out.println(functionFactory.getFunction("negative|abs").apply(-7));
 
+            try {
+                functionFactory.getFunction("square|cube");
+            } catch (InvalidFunctionNameException e) {
+                System.out.println(e.getMessage());
+            }
+
+            FunctionFactory<String, Integer> lengths = new FunctionFactory<>();
+            lengths.addFunction("length", String::length);
+            try {
+                lengths.getFunction("length|length");
+            } catch (InvalidFunctionNameException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
 
+    /**
+     * Primitive factories: the same names, pipelines and InvalidFunctionNameException, but no Integer objects.
+     */
+    public static class PrimitiveFactories {
+        public static void main(String[] args) {
+            IntFunctionFactory intFactory = new IntFunctionFactory();
+            intFactory.addFunction("square", x -> x * x);
+            intFactory.addFunction("increment", x -> x + 1);
+            intFactory.addFunction("abs", Math::abs);
+            System.out.println(intFactory.getFunction("square").applyAsInt(25));
+            System.out.println(intFactory.getFunction("increment|square").applyAsInt(-4));
+
+            LongFunctionFactory longFactory = new LongFunctionFactory();
+            longFactory.addFunction("cube", x -> x * x * x);
+            System.out.println(longFactory.getFunction("cube").applyAsLong(100_000L));
+
+            DoubleFunctionFactory doubleFactory = new DoubleFunctionFactory();
+            doubleFactory.addFunction("sqrt", Math::sqrt);
+            doubleFactory.addFunction("half", x -> x / 2);
+            System.out.println(doubleFactory.getFunction("sqrt|half").applyAsDouble(16.0));
+
+            int[] values = new int[1_000_000];
+            Arrays.setAll(values, i -> i - 500_000);
+            intFactory.applyAll("abs|increment", values);
+            System.out.println(values[0] + ", " + values[500_000] + ", " + values[999_999]);
+
+            double[] roots = new double[values.length];
+            doubleFactory.applyAll("sqrt", Arrays.stream(values).asDoubleStream().toArray(), roots);
+            System.out.println(roots[0]);
+
+            try {
+                intFactory.getFunction("decrement");
+            } catch (InvalidFunctionNameException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,580 @@
+package com.ua.codespace;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.Buffer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ua.codespace.MethodRefCE_001.ClassCreator;
+import com.ua.codespace.MethodRefCE_001.MyClass;
+import com.ua.codespace.MethodRefCE_001.StringConverter;
+
+/**
+ * Method references, created at runtime.
+ * String::valueOf in GenericMethodReference1 is linked by the compiler with invokedynamic and LambdaMetafactory.
+ * When a converter is chosen at runtime, it is usually called with Method.invoke: argument array, boxing,
+ * access checks on every call. LambdaMetafactory can be called directly, and gives the same kind of object
+ * as a method reference in the source code.
+ */
+public class MethodRefCE_002 {
+
+    /**
+     * Builds functional interface instances from Method/MethodHandle with LambdaMetafactory and caches them.
+     * Instances are cached per (functional interface, implementation method), and StringConverters per source type.
+     * After the first lookup a call costs the same as a call of String::valueOf written in the code.
+     */
+    static final class ConverterRegistry {
+        private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+        private final ConcurrentMap<Class<?>, StringConverter<?>> bySourceType = new ConcurrentHashMap<>();
+        private final ConcurrentMap<Key, Object> byMethod = new ConcurrentHashMap<>();
+
+        /**
+         * Converter for values of the source type: String.valueOf overload for this type
+         * (primitives and their wrappers, char[]) or String.valueOf(Object) for anything else.
+         */
+        @SuppressWarnings("unchecked")
+        <T> StringConverter<T> converterFor(Class<T> sourceType) {
+            return (StringConverter<T>) bySourceType.computeIfAbsent(sourceType, type -> {
+                Method valueOf = valueOfMethod(type);
+                return generate(StringConverter.class, unreflect(valueOf), MethodType.methodType(String.class, type));
+            });
+        }
+
+        /**
+         * Converter calling the method: a static method with one argument, or an instance method without arguments,
+         * returning String.
+         */
+        @SuppressWarnings("unchecked")
+        <T> StringConverter<T> converterOf(Method method) {
+            if (method.getReturnType() != String.class) {
+                throw new IllegalArgumentException("Method must return String: " + method);
+            }
+            Class<?> sourceType;
+            if (Modifier.isStatic(method.getModifiers()) && method.getParameterCount() == 1) {
+                sourceType = method.getParameterTypes()[0];
+            } else if (!Modifier.isStatic(method.getModifiers()) && method.getParameterCount() == 0) {
+                sourceType = method.getDeclaringClass();
+            } else {
+                throw new IllegalArgumentException("Method can't convert one value: " + method);
+            }
+            return (StringConverter<T>) byMethod.computeIfAbsent(new Key(StringConverter.class, method),
+                    key -> generate(StringConverter.class, unreflect(method), MethodType.methodType(String.class, wrap(sourceType))));
+        }
+
+        /**
+         * Converter calling a direct method handle (from findStatic, findVirtual, unreflect), cached by its method.
+         */
+        <T> StringConverter<T> converterOf(MethodHandle handle) {
+            return converterOf(LOOKUP.revealDirect(handle).reflectAs(Method.class, LOOKUP));
+        }
+
+        /**
+         * Creates an instance of the functional interface, that calls the direct method handle.
+         * instantiatedType is the method type of the interface method after generic types are substituted.
+         */
+        <F> F generate(Class<F> functionalInterface, MethodHandle implementation, MethodType instantiatedType) {
+            Method sam = singleAbstractMethod(functionalInterface);
+            MethodType samType = MethodType.methodType(sam.getReturnType(), sam.getParameterTypes());
+            try {
+                CallSite site = LambdaMetafactory.metafactory(LOOKUP, sam.getName(),
+                        MethodType.methodType(functionalInterface), samType, implementation, wrapParameters(instantiatedType));
+                return functionalInterface.cast(site.getTarget().invoke());
+            } catch (LambdaConversionException e) {
+                throw new IllegalArgumentException("Can't convert " + implementation + " to " + functionalInterface.getName(), e);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static MethodHandle unreflect(Method method) {
+            try {
+                MethodHandle handle = LOOKUP.unreflect(method);
+                /* fails early for handles, that are not direct method handles */
+                LOOKUP.revealDirect(handle);
+                return handle;
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("No access to " + method, e);
+            }
+        }
+
+        private static Method valueOfMethod(Class<?> type) {
+            Class<?> parameter = unwrap(type);
+            if (parameter == byte.class || parameter == short.class) {
+                parameter = int.class;
+            }
+            try {
+                return String.class.getMethod("valueOf", parameter);
+            } catch (NoSuchMethodException e) {
+                try {
+                    return String.class.getMethod("valueOf", Object.class);
+                } catch (NoSuchMethodException impossible) {
+                    throw new IllegalStateException(impossible);
+                }
+            }
+        }
+
+        private static Method singleAbstractMethod(Class<?> functionalInterface) {
+            Method[] abstractMethods = Arrays.stream(functionalInterface.getMethods())
+                    .filter(method -> Modifier.isAbstract(method.getModifiers()))
+                    .toArray(Method[]::new);
+            if (!functionalInterface.isInterface() || abstractMethods.length != 1) {
+                throw new IllegalArgumentException(functionalInterface.getName() + " is not a functional interface");
+            }
+            return abstractMethods[0];
+        }
+
+        /* LambdaMetafactory unboxes arguments itself, the instantiated type must use wrappers for generic parameters */
+        private static MethodType wrapParameters(MethodType type) {
+            Class<?>[] parameters = type.parameterArray();
+            for (int i = 0; i < parameters.length; i++) {
+                parameters[i] = wrap(parameters[i]);
+            }
+            return MethodType.methodType(type.returnType(), parameters);
+        }
+
+        private static Class<?> wrap(Class<?> type) {
+            return type.isPrimitive() ? MethodType.methodType(type).wrap().returnType() : type;
+        }
+
+        private static Class<?> unwrap(Class<?> type) {
+            return MethodType.methodType(type).unwrap().returnType();
+        }
+
+        private static final class Key {
+            final Class<?> functionalInterface;
+            final Method method;
+
+            Key(Class<?> functionalInterface, Method method) {
+                this.functionalInterface = functionalInterface;
+                this.method = method;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (this == o) return true;
+                if (o == null || getClass() != o.getClass()) return false;
+                Key key = (Key) o;
+                return functionalInterface == key.functionalInterface && method.equals(key.method);
+            }
+
+            @Override
+            public int hashCode() {
+                return Objects.hash(functionalInterface, method);
+            }
+        }
+    }
+
+    public static class GeneratedConverters {
+
+        public static void main(String[] args) throws Exception {
+            ConverterRegistry registry = new ConverterRegistry();
+
+            StringConverter<Integer> intConverter = registry.converterFor(Integer.class);
+            System.out.println(intConverter.convert(123).length());
+            System.out.println(registry.converterFor(Double.class).convert(123.0).length());
+            System.out.println(registry.converterFor(Boolean.class).convert(Boolean.FALSE).length());
+            System.out.println(intConverter == registry.converterFor(Integer.class));
+
+            /* Chosen at runtime, but called as a plain method reference, without Method.invoke */
+            Method toHexString = Long.class.getMethod("toHexString", long.class);
+            StringConverter<Long> hexConverter = registry.converterOf(toHexString);
+            System.out.println(hexConverter.convert(255L));
+
+            MethodHandle toUpperCase = MethodHandles.lookup().findVirtual(String.class, "toUpperCase", MethodType.methodType(String.class));
+            StringConverter<String> upperCase = registry.converterOf(toUpperCase);
+            System.out.println(upperCase.convert("john"));
+
+            /* The same kind of class, that javac produces for String::valueOf */
+            StringConverter<Object> compiled = String::valueOf;
+            System.out.println(compiled.getClass().isSynthetic() + " " + intConverter.getClass().isSynthetic());
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * StringConverter, that can write the text into a caller's buffer instead of creating a String,
+     * and can tell the length of the text without creating it.
+     * ByteBuffer output is UTF-8. When the text doesn't fit, a buffer is left unchanged and BufferOverflowException is thrown.
+     */
+    interface AppendingConverter<T> extends StringConverter<T> {
+        int length(T value);
+
+        void appendTo(T value, StringBuilder out);
+
+        void appendTo(T value, CharBuffer out);
+
+        void appendTo(T value, ByteBuffer out);
+
+        @Override
+        default String convert(T value) {
+            StringBuilder out = new StringBuilder(length(value));
+            appendTo(value, out);
+            return out.toString();
+        }
+    }
+
+    /**
+     * Integral numbers (int values are widened to long, the text is the same).
+     * Digits are written straight into the buffer from the last one, the length is counted by division.
+     */
+    static final class LongAppender implements AppendingConverter<Long> {
+        static final LongAppender INSTANCE = new LongAppender();
+
+        int length(long value) {
+            if (value == Long.MIN_VALUE) {
+                return 20;
+            }
+            int length = value < 0 ? 2 : 1;
+            for (long rest = Math.abs(value); rest >= 10; rest /= 10) {
+                length++;
+            }
+            return length;
+        }
+
+        void appendTo(long value, StringBuilder out) {
+            out.append(value);
+        }
+
+        void appendTo(long value, CharBuffer out) {
+            int length = length(value);
+            int end = reserve(out, length);
+            /* digits of a negative number, so Long.MIN_VALUE doesn't overflow */
+            long rest = value < 0 ? value : -value;
+            int i = end;
+            do {
+                out.put(--i, (char) ('0' - rest % 10));
+                rest /= 10;
+            } while (rest != 0);
+            if (value < 0) {
+                out.put(--i, '-');
+            }
+            out.position(end);
+        }
+
+        void appendTo(long value, ByteBuffer out) {
+            int length = length(value);
+            int end = reserve(out, length);
+            long rest = value < 0 ? value : -value;
+            int i = end;
+            do {
+                out.put(--i, (byte) ('0' - rest % 10));
+                rest /= 10;
+            } while (rest != 0);
+            if (value < 0) {
+                out.put(--i, (byte) '-');
+            }
+            out.position(end);
+        }
+
+        @Override
+        public int length(Long value) {
+            return length(value.longValue());
+        }
+
+        @Override
+        public void appendTo(Long value, StringBuilder out) {
+            appendTo(value.longValue(), out);
+        }
+
+        @Override
+        public void appendTo(Long value, CharBuffer out) {
+            appendTo(value.longValue(), out);
+        }
+
+        @Override
+        public void appendTo(Long value, ByteBuffer out) {
+            appendTo(value.longValue(), out);
+        }
+    }
+
+    /**
+     * Doubles in the format of Double.toString.
+     * StringBuilder.append(double) formats without creating a String, so the text is formatted into a reusable
+     * per-thread builder and copied from there. Length is not known without formatting for doubles.
+     */
+    static final class DoubleAppender implements AppendingConverter<Double> {
+        static final DoubleAppender INSTANCE = new DoubleAppender();
+
+        private static final ThreadLocal<StringBuilder> SCRATCH = ThreadLocal.withInitial(() -> new StringBuilder(32));
+
+        int length(double value) {
+            return format(value).length();
+        }
+
+        void appendTo(double value, StringBuilder out) {
+            out.append(value);
+        }
+
+        void appendTo(double value, CharBuffer out) {
+            StringBuilder text = format(value);
+            int end = reserve(out, text.length());
+            for (int i = 0; i < text.length(); i++) {
+                out.put(end - text.length() + i, text.charAt(i));
+            }
+            out.position(end);
+        }
+
+        /* Double.toString is always ASCII */
+        void appendTo(double value, ByteBuffer out) {
+            StringBuilder text = format(value);
+            int end = reserve(out, text.length());
+            for (int i = 0; i < text.length(); i++) {
+                out.put(end - text.length() + i, (byte) text.charAt(i));
+            }
+            out.position(end);
+        }
+
+        private static StringBuilder format(double value) {
+            StringBuilder text = SCRATCH.get();
+            text.setLength(0);
+            return text.append(value);
+        }
+
+        @Override
+        public int length(Double value) {
+            return length(value.doubleValue());
+        }
+
+        @Override
+        public void appendTo(Double value, StringBuilder out) {
+            appendTo(value.doubleValue(), out);
+        }
+
+        @Override
+        public void appendTo(Double value, CharBuffer out) {
+            appendTo(value.doubleValue(), out);
+        }
+
+        @Override
+        public void appendTo(Double value, ByteBuffer out) {
+            appendTo(value.doubleValue(), out);
+        }
+    }
+
+    /**
+     * Any object as String.valueOf(object). CharSequences (and booleans, "true"/"false" constants)
+     * are copied without creating a String; other objects need their toString().
+     */
+    static final class ObjectAppender implements AppendingConverter<Object> {
+        static final ObjectAppender INSTANCE = new ObjectAppender();
+
+        @Override
+        public int length(Object value) {
+            return text(value).length();
+        }
+
+        @Override
+        public void appendTo(Object value, StringBuilder out) {
+            out.append(text(value));
+        }
+
+        @Override
+        public void appendTo(Object value, CharBuffer out) {
+            CharSequence text = text(value);
+            int end = reserve(out, text.length());
+            for (int i = 0; i < text.length(); i++) {
+                out.put(end - text.length() + i, text.charAt(i));
+            }
+            out.position(end);
+        }
+
+        @Override
+        public void appendTo(Object value, ByteBuffer out) {
+            CharSequence text = text(value);
+            reserve(out, utf8Length(text));
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    out.put((byte) c);
+                } else if (c < 0x800) {
+                    out.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    out.put((byte) (0xF0 | codePoint >> 18)).put((byte) (0x80 | codePoint >> 12 & 0x3F))
+                            .put((byte) (0x80 | codePoint >> 6 & 0x3F)).put((byte) (0x80 | codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    out.put((byte) '?');
+                } else {
+                    out.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+                }
+            }
+        }
+
+        /* unpaired surrogates are written as '?' */
+        private static int utf8Length(CharSequence text) {
+            int length = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    length++;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += Character.isSurrogate(c) ? 1 : 3;
+                }
+            }
+            return length;
+        }
+
+        private static CharSequence text(Object value) {
+            if (value instanceof CharSequence) {
+                return (CharSequence) value;
+            }
+            if (value instanceof Boolean) {
+                return (Boolean) value ? "true" : "false";
+            }
+            return String.valueOf(value);
+        }
+    }
+
+    /**
+     * Checks, that length chars/bytes fit after the position, and returns the position after them.
+     */
+    static int reserve(Buffer out, int length) {
+        if (out.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        return out.position() + length;
+    }
+
+    /**
+     * The same lengths as in GenericMethodReference1, but no String is created
+     */
+    public static class AppendingConverters {
+
+        public static void main(String[] args) {
+            System.out.println(LongAppender.INSTANCE.length(123));
+            System.out.println(DoubleAppender.INSTANCE.length(123.0));
+            System.out.println(LongAppender.INSTANCE.length(123L));
+            System.out.println(ObjectAppender.INSTANCE.length(Boolean.FALSE));
+
+            ByteBuffer out = ByteBuffer.allocate(64);
+            LongAppender.INSTANCE.appendTo(Long.MIN_VALUE, out);
+            out.put((byte) ',');
+            DoubleAppender.INSTANCE.appendTo(-0.5, out);
+            out.put((byte) ',');
+            ObjectAppender.INSTANCE.appendTo("\u041f\u0440\u0438\u0432\u0456\u0442", out);
+            out.flip();
+            System.out.println(StandardCharsets.UTF_8.decode(out));
+
+            AppendingConverter<Long> converter = LongAppender.INSTANCE;
+            System.out.println(converter.convert(255L));
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * ClassCreator, that reuses released MyClass objects instead of calling the constructor.
+     * Every thread has its own free list (no synchronization), at most maxPoolSize objects each.
+     * An object must be released by the code, that doesn't use it anymore, and must not be used after release.
+     * Objects released to a full pool are left to the garbage collector.
+     * <p>
+     * Pooling pays off only when construction is expensive or the object lives long enough to be promoted;
+     * for small short-lived objects new MyClass(n) is a pointer bump in TLAB and usually wins,
+     * see poolCreator/constructorCreator in StreamsBench_001.
+     */
+    static final class PooledClassCreator implements ClassCreator {
+        private static final class Pool {
+            final MyClass[] free;
+            int size;
+
+            Pool(int capacity) {
+                free = new MyClass[capacity];
+            }
+        }
+
+        private final ThreadLocal<Pool> pools;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder drops = new LongAdder();
+
+        PooledClassCreator(int maxPoolSize) {
+            if (maxPoolSize <= 0) {
+                throw new IllegalArgumentException("maxPoolSize must be positive: " + maxPoolSize);
+            }
+            pools = ThreadLocal.withInitial(() -> new Pool(maxPoolSize));
+        }
+
+        @Override
+        public MyClass create(int number) {
+            Pool pool = pools.get();
+            if (pool.size == 0) {
+                misses.increment();
+                return new MyClass(number);
+            }
+            hits.increment();
+            MyClass obj = pool.free[--pool.size];
+            pool.free[pool.size] = null;
+            obj.setNumber(number);
+            return obj;
+        }
+
+        void release(MyClass obj) {
+            Pool pool = pools.get();
+            if (pool.size < pool.free.length) {
+                pool.free[pool.size++] = obj;
+            } else {
+                drops.increment();
+            }
+        }
+
+        long hits() {
+            return hits.sum();
+        }
+
+        long misses() {
+            return misses.sum();
+        }
+
+        /**
+         * Released objects, that didn't fit into the pool.
+         */
+        long drops() {
+            return drops.sum();
+        }
+
+        double hitRate() {
+            long hits = hits();
+            long total = hits + misses();
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    public static class PooledCreation {
+
+        public static void main(String[] args) {
+            ClassCreator creator = MyClass::new;
+            PooledClassCreator pooledCreator = new PooledClassCreator(16);
+
+            long sum = 0;
+            for (int i = 0; i < 1_000_000; i++) {
+                MyClass plain = creator.create(i);
+                MyClass pooled = pooledCreator.create(i);
+                sum += plain.getNumber() - pooled.getNumber();
+                pooledCreator.release(pooled);
+            }
+            System.out.println(sum);
+            System.out.printf("hits %d, misses %d, hit rate %.4f%n", pooledCreator.hits(), pooledCreator.misses(), pooledCreator.hitRate());
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package com.ua.codespace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import com.ua.codespace.MethodRefCE_001.ClassCreator;
+import com.ua.codespace.MethodRefCE_001.MyClass;
+import com.ua.codespace.MethodRefCE_002.PooledClassCreator;
+import com.ua.codespace.StreamsCW_001.Person;
+
+import static com.ua.codespace.StreamsCW_001.CollectAndGroupWords.WORDS;
+import static com.ua.codespace.StreamsCW_001.CollectAndGroupWords.stateOfLambda;
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.counting;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toSet;
+
+/**
+ * Benchmarks for the examples of StreamsCW_001 (and a few other examples).
+ * performNTimes measures a single run with System.nanoTime(): no warmup, no separate JVM, and the JIT is free
+ * to throw the result away. This harness does what JMH would do for us, without extra dependencies:
+ * - every (benchmark, size) pair runs in a fresh forked JVM, so profiles of other benchmarks don't leak in;
+ * - warmup iterations are run and thrown away before measured iterations;
+ * - every iteration repeats the operation until it lasts at least ITERATION_TIME_NS, so tiny sizes are measurable;
+ * - every result goes to a Blackhole, so dead code elimination can't remove the work;
+ * - results are printed as a JSON array (average time, ns/op), that can be stored and compared between builds.
+ * <p>
+ * Usage: java com.ua.codespace.StreamsBench_001 [--sizes 10,1e3,1e5,1e7,1e8] [--forks 1] [--warmups 5]
+ * [--iterations 10] [--filter regex] [--out results.json]
+ * <p>
+ * Input lists are views, that cycle over the sample data, so sizes up to 10^8 don't need 10^8 objects on the heap.
+ * <p>
+ * Sizes over the maxSize of a benchmark are skipped with a note on stderr: reduce with string concatenation
+ * runs up to 10^5 (it is O(n^2)), joining up to 10^7 (10^8 names make a String of about 800 million chars).
+ */
+public class StreamsBench_001 {
+
+    static final long ITERATION_TIME_NS = 100_000_000L;
+    static final String DEFAULT_SIZES = "10,1000,100000,10000000,100000000";
+
+    interface Benchmark {
+        Object run(int size);
+    }
+
+    static class BenchmarkDefinition {
+        final String name;
+        final int maxSize;
+        final Benchmark benchmark;
+
+        BenchmarkDefinition(String name, int maxSize, Benchmark benchmark) {
+            this.name = name;
+            this.maxSize = maxSize;
+            this.benchmark = benchmark;
+        }
+    }
+
+    /**
+     * Keeps results reachable, so the JIT can't prove they are unused.
+     */
+    static final class Blackhole {
+        static volatile Object sink;
+
+        static void consume(Object result) {
+            sink = result;
+        }
+    }
+
+    static final Map<String, BenchmarkDefinition> BENCHMARKS = new LinkedHashMap<>();
+
+    static void register(String name, int maxSize, Benchmark benchmark) {
+        BENCHMARKS.put(name, new BenchmarkDefinition(name, maxSize, benchmark));
+    }
+
+    static final PooledClassCreator POOLED_CREATOR = new PooledClassCreator(64);
+
+    static {
+        register("longNameCount.imperative", Integer.MAX_VALUE, size -> {
+            int counter = 0;
+            for (String name : names(size)) {
+                if (name.length() > 5) {
+                    counter++;
+                }
+            }
+            return counter;
+        });
+        register("longNameCount.functional.sequential", Integer.MAX_VALUE, size -> names(size).stream()
+                .filter(name -> name.length() > 5)
+                .mapToLong(name -> 1L)
+                .reduce(0, Long::sum));
+        register("longNameCount.functional.parallel", Integer.MAX_VALUE, size -> names(size).parallelStream()
+                .filter(name -> name.length() > 5)
+                .mapToLong(name -> 1L)
+                .reduce(0, Long::sum));
+
+        /* reduce with string concatenation is O(n^2), bigger sizes never finish */
+        register("collectAndReduceName.reduce.sequential", 100_000, size -> names(size).stream()
+                .reduce((n, m) -> n + ", " + m));
+        register("collectAndReduceName.reduce.parallel", 100_000, size -> names(size).parallelStream()
+                .reduce((n, m) -> n + ", " + m));
+        register("collectAndReduceName.joining.sequential", 10_000_000, size -> names(size).stream()
+                .collect(Collectors.joining(", ")));
+        register("collectAndReduceName.joining.parallel", 10_000_000, size -> names(size).parallelStream()
+                .collect(Collectors.joining(", ")));
+
+        register("simpleStreamProcessing.sequential", Integer.MAX_VALUE, size -> groupByZipCode(persons(size).stream()));
+        register("simpleStreamProcessing.parallel", Integer.MAX_VALUE, size -> groupByZipCode(persons(size).parallelStream()));
+
+        register("collectAndGroupWords.sequential", Integer.MAX_VALUE, size -> groupWords(lines(size).stream()));
+        register("collectAndGroupWords.parallel", Integer.MAX_VALUE, size -> groupWords(lines(size).parallelStream()));
+
+        register("count.sequential", Integer.MAX_VALUE, size -> LongStream.range(0, size).count());
+        register("count.parallel", Integer.MAX_VALUE, size -> LongStream.range(0, size).parallel().count());
+
+        /* MethodRefCE_002.PooledClassCreator vs MyClass::new: size objects are created (and released) per operation */
+        register("constructorCreator", Integer.MAX_VALUE, size -> {
+            ClassCreator creator = MyClass::new;
+            long sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += creator.create(i).getNumber();
+            }
+            return sum;
+        });
+        register("poolCreator", Integer.MAX_VALUE, size -> {
+            long sum = 0;
+            for (int i = 0; i < size; i++) {
+                MyClass obj = POOLED_CREATOR.create(i);
+                sum += obj.getNumber();
+                POOLED_CREATOR.release(obj);
+            }
+            return sum;
+        });
+    }
+
+    static Object groupByZipCode(Stream<Person> persons) {
+        Map<Integer, Set<Person>> zipCodeToPersonsMap = persons
+                .filter(p -> p.getName().length() > 2)
+                .collect(groupingBy(Person::getZipCode, toSet()));
+        return zipCodeToPersonsMap.entrySet().stream()
+                .filter(entry -> entry.getValue().size() > 1)
+                .count();
+    }
+
+    static Object groupWords(Stream<String> lines) {
+        Map<String, Long> wordsCountMap = lines.flatMap(WORDS::splitAsStream)
+                .filter(word -> word.length() > 5)
+                .collect(groupingBy(identity(), counting()));
+        return wordsCountMap.entrySet().stream()
+                .filter(entry -> entry.getValue() > 20)
+                .count();
+    }
+
+    static List<String> names(int size) {
+        return cycle(StreamsCW_001.names, size);
+    }
+
+    static List<Person> persons(int size) {
+        return cycle(StreamsCW_001.persons, size);
+    }
+
+    private static List<String> sampleLines;
+
+    static synchronized List<String> lines(int size) {
+        if (sampleLines == null) {
+            try {
+                sampleLines = Files.readAllLines(stateOfLambda);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't read " + stateOfLambda.toAbsolutePath(), e);
+            }
+        }
+        return cycle(sampleLines, size);
+    }
+
+    /**
+     * Read-only list of the given size, which element i is sample.get(i % sample.size()).
+     * The list splits by index like ArrayList does, the default spliterator of a Java 8 list splits
+     * through its iterator into batches, and parallel benchmarks would measure that instead of the pipeline.
+     */
+    static <T> List<T> cycle(List<T> sample, int size) {
+        class Cycle extends AbstractList<T> implements RandomAccess {
+            @Override
+            public T get(int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+                }
+                return sample.get(index % sample.size());
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Spliterator<T> spliterator() {
+                return new CycleSpliterator<>(sample, 0, size);
+            }
+        }
+        return new Cycle();
+    }
+
+    /**
+     * Elements from..to of a cycle, splits in halves.
+     */
+    static final class CycleSpliterator<T> implements Spliterator<T> {
+        private final List<T> sample;
+        private int from;
+        private final int to;
+
+        CycleSpliterator(List<T> sample, int from, int to) {
+            this.sample = sample;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (from >= to) {
+                return false;
+            }
+            action.accept(sample.get(from++ % sample.size()));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            int sampleSize = sample.size();
+            for (int i = from; i < to; i++) {
+                action.accept(sample.get(i % sampleSize));
+            }
+            from = to;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int middle = (from + to) >>> 1;
+            if (middle <= from) {
+                return null;
+            }
+            Spliterator<T> prefix = new CycleSpliterator<>(sample, from, middle);
+            from = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return to - from;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | IMMUTABLE;
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    static class Options {
+        int[] sizes = parseSizes(DEFAULT_SIZES);
+        int forks = 1;
+        int warmups = 5;
+        int iterations = 10;
+        Pattern filter = Pattern.compile(".*");
+        String out;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--sizes":
+                        options.sizes = parseSizes(value);
+                        break;
+                    case "--forks":
+                        options.forks = Integer.parseInt(value);
+                        break;
+                    case "--warmups":
+                        options.warmups = Integer.parseInt(value);
+                        break;
+                    case "--iterations":
+                        options.iterations = Integer.parseInt(value);
+                        break;
+                    case "--filter":
+                        options.filter = Pattern.compile(value);
+                        break;
+                    case "--out":
+                        options.out = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            return options;
+        }
+
+        static int[] parseSizes(String sizes) {
+            return Arrays.stream(sizes.split(",")).mapToInt(size -> (int) Double.parseDouble(size.trim())).toArray();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--child")) {
+            runChild(args);
+            return;
+        }
+        Options options = Options.parse(args);
+        List<String> results = new ArrayList<>();
+        for (BenchmarkDefinition definition : BENCHMARKS.values()) {
+            if (!options.filter.matcher(definition.name).find()) {
+                continue;
+            }
+            for (int size : options.sizes) {
+                if (size > definition.maxSize) {
+                    System.err.println("skipped " + definition.name + " for size " + size + ", max size is " + definition.maxSize);
+                    continue;
+                }
+                List<Double> scores = new ArrayList<>();
+                for (int fork = 0; fork < options.forks; fork++) {
+                    scores.addAll(fork(definition.name, size, options));
+                }
+                String json = toJson(definition.name, size, options, scores);
+                System.err.println(json);
+                results.add(json);
+            }
+        }
+        String report = results.stream().collect(Collectors.joining(",\n", "[\n", "\n]\n"));
+        if (options.out != null) {
+            Files.write(Paths.get(options.out), report.getBytes(StandardCharsets.UTF_8));
+        } else {
+            System.out.print(report);
+        }
+    }
+
+    /**
+     * Runs one benchmark in a new JVM, the child prints one score (ns/op) per measured iteration.
+     */
+    static List<Double> fork(String name, int size, Options options) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                StreamsBench_001.class.getName(), "--child", name, String.valueOf(size),
+                String.valueOf(options.warmups), String.valueOf(options.iterations))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        List<Double> scores = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                scores.add(Double.parseDouble(line));
+            }
+        }
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Benchmark " + name + " (size " + size + ") failed");
+        }
+        return scores;
+    }
+
+    static void runChild(String[] args) {
+        BenchmarkDefinition definition = BENCHMARKS.get(args[1]);
+        int size = Integer.parseInt(args[2]);
+        int warmups = Integer.parseInt(args[3]);
+        int iterations = Integer.parseInt(args[4]);
+        for (int i = 0; i < warmups; i++) {
+            iteration(definition.benchmark, size);
+        }
+        for (int i = 0; i < iterations; i++) {
+            System.out.println(iteration(definition.benchmark, size));
+        }
+    }
+
+    /**
+     * Repeats the operation for at least ITERATION_TIME_NS and returns the average time of one operation in ns.
+     */
+    static double iteration(Benchmark benchmark, int size) {
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            Blackhole.consume(benchmark.run(size));
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_TIME_NS);
+        return (double) elapsed / operations;
+    }
+
+    static String toJson(String name, int size, Options options, List<Double> scores) {
+        double mean = scores.stream().mapToDouble(Double::doubleValue).average().orElse(Double.NaN);
+        double variance = scores.stream().mapToDouble(score -> (score - mean) * (score - mean)).sum()
+                / Math.max(1, scores.size() - 1);
+        double min = scores.stream().mapToDouble(Double::doubleValue).min().orElse(Double.NaN);
+        double max = scores.stream().mapToDouble(Double::doubleValue).max().orElse(Double.NaN);
+        return String.format(Locale.ROOT,
+                "  {\"benchmark\": \"%s\", \"mode\": \"avgt\", \"params\": {\"size\": %d}, \"forks\": %d, "
+                        + "\"warmupIterations\": %d, \"measurementIterations\": %d, \"unit\": \"ns/op\", "
+                        + "\"score\": %.3f, \"scoreStdev\": %.3f, \"scoreMin\": %.3f, \"scoreMax\": %.3f}",
+                name, size, options.forks, options.warmups, options.iterations,
+                mean, Math.sqrt(variance), min, max);
+    }
+}
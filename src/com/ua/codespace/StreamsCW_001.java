@@ -10,6 +10,10 @@ import java.util.stream.Collectors;
 import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
+import com.ua.codespace.StreamsPrimitive_001.IntGroups;
+import com.ua.codespace.StreamsPrimitive_001.RandomStreams;
+
+import static com.ua.codespace.StreamsPrimitive_001.IntGroups.groupingByInt;
 import static java.util.Collections.reverseOrder;
 import static java.util.function.Function.identity;
 import static java.util.stream.Collectors.*;
@@ -118,6 +122,41 @@ public class StreamsCW_001 {
         }
     }
 
+    /**
+     * The same grouping with int keys: no Integer key and no HashSet per zip code,
+     * groups with more than one person are found by their sizes only.
+     */
+    public static class DenseZipCodeGrouping {
+        public static void main(String[] args) {
+            IntGroups<Person> zipCodeToPersons = persons.stream()
+                    .filter(p -> p.getName().length() > 2)
+                    .collect(groupingByInt(Person::getZipCode));
+
+            zipCodeToPersons.forEachGroup(size -> size > 1, (zipCode, group) -> System.out.println(zipCode + "=" + group));
+
+            /* 2 million persons in 100_000 zip codes */
+            List<Person> people = new RandomStreams(1).ints(2_000_000, 0, 100_000)
+                    .mapToObj(zipCode -> new Person(zipCode, names.get(zipCode % names.size())))
+                    .collect(toList());
+
+            for (int i = 0; i < 5; i++) {
+                long start = System.nanoTime();
+                long count = people.parallelStream()
+                        .collect(groupingBy(Person::getZipCode, toSet()))
+                        .values().stream().filter(group -> group.size() > 1).count();
+                long boxed = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                IntGroups<Person> groups = people.parallelStream().collect(groupingByInt(Person::getZipCode));
+                int denseCount = groups.keysWhere(size -> size > 1).length;
+                long dense = System.nanoTime() - start;
+
+                System.out.println(count + " / " + denseCount + " zip codes, groupingBy: " + boxed / 1_000_000
+                        + " ms, groupingByInt: " + dense / 1_000_000 + " ms, dense: " + groups.isDense());
+            }
+        }
+    }
+
 
     //    -------------------------------------------------------------------------------------------------------------
 
@@ -0,0 +1,352 @@
+package com.ua.codespace;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.BaseStream;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.ua.codespace.StreamsMetrics_001.StageSnapshot;
+import com.ua.codespace.StreamsMetrics_001.StreamProbe;
+
+import static com.ua.codespace.StreamsCW_001.ProcessingParallelStreams.LIMIT;
+import static com.ua.codespace.StreamsCW_001.ProcessingParallelStreams.N;
+
+/**
+ * When to call parallel(), and where the parallel stream runs.
+ * ProcessingParallelStreams shows, that parallel() makes a small LongStream.range slower: splitting and joining
+ * cost more than the work. And every parallel stream runs in ForkJoinPool.commonPool(), shared by the whole JVM.
+ * A terminal operation, called from a task of another ForkJoinPool, runs in that pool instead,
+ * so a pipeline can be given its own, size-limited pool.
+ */
+public class StreamsExecution_001 {
+
+    /**
+     * Runs stream pipelines sequentially or in parallel in its own named ForkJoinPool.
+     * <p>
+     * The choice is made by a cost model: a pipeline of n elements, c ns each, takes n * c sequentially and
+     * about n * c / p + overhead in parallel (p is the pool parallelism, but not more than the number of CPUs).
+     * So parallel pays off when n * c * (1 - 1/p) > overhead.
+     * Both are learned per pipeline name as moving averages: c from sequential runs, overhead from parallel ones
+     * (starting from the overhead of a tiny pipeline, measured when the pool is created).
+     * The first run of a pipeline is sequential, and after EXPLORE_EVERY parallel runs in a row one run is sequential
+     * again, so a cost, measured before JIT compilation or on other data, doesn't stick.
+     * <p>
+     * Every run is timed by a StreamProbe as a stage "[pipeline] sequential" or "[pipeline] parallel",
+     * and the executor is an MXBean with decisions and the pool usage.
+     */
+    static final class AdaptiveExecutor implements AdaptiveExecutorMXBean, AutoCloseable {
+        /* weight of the last run in the moving average of the cost */
+        static final double SMOOTHING = 0.3;
+        static final int EXPLORE_EVERY = 16;
+
+        private final String name;
+        private final ForkJoinPool pool;
+        private final StreamProbe probe;
+        private final long overheadNanos;
+        private final ConcurrentMap<String, Pipeline> pipelines = new ConcurrentHashMap<>();
+        private final AtomicInteger running = new AtomicInteger();
+
+        AdaptiveExecutor(String name, int parallelism, StreamProbe probe) {
+            this.name = name;
+            this.pool = new ForkJoinPool(parallelism, pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName(name + "-worker-" + thread.getPoolIndex());
+                return thread;
+            }, null, false);
+            this.probe = probe;
+            this.overheadNanos = measureOverhead();
+        }
+
+        /**
+         * Runs pipeline on stream, made parallel or sequential. estimatedSize is the number of elements of the source.
+         */
+        <S extends BaseStream<?, S>, R> R execute(String pipeline, long estimatedSize, S stream, Function<? super S, ? extends R> pipelineFunction) {
+            if (estimatedSize < 0) {
+                throw new IllegalArgumentException("estimatedSize must be non-negative: " + estimatedSize);
+            }
+            Pipeline stats = pipelines.computeIfAbsent(pipeline, Pipeline::new);
+            boolean parallel = stats.parallel(estimatedSize);
+            running.incrementAndGet();
+            try {
+                long start = System.nanoTime();
+                R result = probe.measure(pipeline + (parallel ? " parallel" : " sequential"),
+                        () -> parallel ? runInPool(() -> pipelineFunction.apply(stream.parallel()))
+                                : pipelineFunction.apply(stream.sequential()));
+                stats.learn(estimatedSize, parallel, System.nanoTime() - start);
+                return result;
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        <T, R> R execute(String pipeline, Collection<T> source, Function<? super Stream<T>, ? extends R> pipelineFunction) {
+            return execute(pipeline, source.size(), source.stream(), pipelineFunction);
+        }
+
+        private int parallelism() {
+            return Math.min(pool.getParallelism(), Runtime.getRuntime().availableProcessors());
+        }
+
+        private <R> R runInPool(Callable<R> task) {
+            return pool.invoke(ForkJoinTask.adapt(task));
+        }
+
+        /* the best of a few tiny parallel pipelines: the price of splitting, forking and joining */
+        private long measureOverhead() {
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < 20; i++) {
+                long start = System.nanoTime();
+                runInPool(() -> IntStream.range(0, 4 * pool.getParallelism()).parallel().sum());
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            return best;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public PoolSnapshot getPool() {
+            return new PoolSnapshot(pool, running.get(), overheadNanos);
+        }
+
+        @Override
+        public List<PipelineSnapshot> getPipelines() {
+            return pipelines.values().stream().map(Pipeline::snapshot).collect(Collectors.toList());
+        }
+
+        /**
+         * Registers the executor as com.ua.codespace:type=AdaptiveExecutor,name=[name].
+         */
+        ObjectName register() throws JMException {
+            ObjectName objectName = new ObjectName("com.ua.codespace:type=AdaptiveExecutor,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        }
+
+        @Override
+        public void close() {
+            pool.shutdown();
+        }
+
+        private final class Pipeline {
+            private final String name;
+            private double nanosPerElement = Double.NaN;
+            private double parallelOverheadNanos = overheadNanos;
+            private long sequentialRuns;
+            private long parallelRuns;
+            private int parallelInRow;
+            private long lastEstimatedSize;
+            private boolean lastParallel;
+
+            Pipeline(String name) {
+                this.name = name;
+            }
+
+            synchronized boolean parallel(long estimatedSize) {
+                int parallelism = parallelism();
+                lastEstimatedSize = estimatedSize;
+                lastParallel = parallelism > 1 && !Double.isNaN(nanosPerElement) && parallelInRow < EXPLORE_EVERY
+                        && estimatedSize * nanosPerElement * (1 - 1.0 / parallelism) > parallelOverheadNanos;
+                if (lastParallel) {
+                    parallelRuns++;
+                    parallelInRow++;
+                } else {
+                    sequentialRuns++;
+                    parallelInRow = 0;
+                }
+                return lastParallel;
+            }
+
+            synchronized void learn(long size, boolean parallel, long elapsedNanos) {
+                if (size == 0) {
+                    return;
+                }
+                if (parallel) {
+                    /* faster than n * c / p: c was measured too high (cold code), p CPUs can't do better */
+                    nanosPerElement = Math.min(nanosPerElement, (double) elapsedNanos * parallelism() / size);
+                    double overhead = Math.max(0, elapsedNanos - size * nanosPerElement / parallelism());
+                    parallelOverheadNanos = SMOOTHING * overhead + (1 - SMOOTHING) * parallelOverheadNanos;
+                } else {
+                    double cost = (double) elapsedNanos / size;
+                    nanosPerElement = Double.isNaN(nanosPerElement) ? cost : SMOOTHING * cost + (1 - SMOOTHING) * nanosPerElement;
+                }
+            }
+
+            synchronized PipelineSnapshot snapshot() {
+                return new PipelineSnapshot(name, sequentialRuns, parallelRuns, nanosPerElement, (long) parallelOverheadNanos,
+                        lastEstimatedSize, lastParallel);
+            }
+        }
+    }
+
+    public interface AdaptiveExecutorMXBean {
+        String getName();
+
+        PoolSnapshot getPool();
+
+        List<PipelineSnapshot> getPipelines();
+    }
+
+    /**
+     * Decisions for one pipeline name.
+     */
+    public static final class PipelineSnapshot {
+        private final String name;
+        private final long sequentialRuns;
+        private final long parallelRuns;
+        private final double nanosPerElement;
+        private final long overheadNanos;
+        private final long lastEstimatedSize;
+        private final boolean lastParallel;
+
+        PipelineSnapshot(String name, long sequentialRuns, long parallelRuns, double nanosPerElement, long overheadNanos,
+                         long lastEstimatedSize, boolean lastParallel) {
+            this.name = name;
+            this.sequentialRuns = sequentialRuns;
+            this.parallelRuns = parallelRuns;
+            this.nanosPerElement = nanosPerElement;
+            this.overheadNanos = overheadNanos;
+            this.lastEstimatedSize = lastEstimatedSize;
+            this.lastParallel = lastParallel;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSequentialRuns() {
+            return sequentialRuns;
+        }
+
+        public long getParallelRuns() {
+            return parallelRuns;
+        }
+
+        public double getNanosPerElement() {
+            return nanosPerElement;
+        }
+
+        /**
+         * Learned cost of a parallel run on top of the work itself.
+         */
+        public long getOverheadNanos() {
+            return overheadNanos;
+        }
+
+        public long getLastEstimatedSize() {
+            return lastEstimatedSize;
+        }
+
+        public boolean isLastParallel() {
+            return lastParallel;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-12s sequential %d, parallel %d, %.2f ns per element, overhead %,d ns, last %,d elements %s",
+                    name, sequentialRuns, parallelRuns, nanosPerElement, overheadNanos, lastEstimatedSize,
+                    lastParallel ? "in parallel" : "sequentially");
+        }
+    }
+
+    /**
+     * Usage of the executor's ForkJoinPool.
+     */
+    public static final class PoolSnapshot {
+        private final int parallelism;
+        private final int poolSize;
+        private final int activeThreads;
+        private final long queuedTasks;
+        private final long stealCount;
+        private final int runningPipelines;
+        private final long overheadNanos;
+
+        PoolSnapshot(ForkJoinPool pool, int runningPipelines, long overheadNanos) {
+            this.parallelism = pool.getParallelism();
+            this.poolSize = pool.getPoolSize();
+            this.activeThreads = pool.getActiveThreadCount();
+            this.queuedTasks = pool.getQueuedTaskCount() + pool.getQueuedSubmissionCount();
+            this.stealCount = pool.getStealCount();
+            this.runningPipelines = runningPipelines;
+            this.overheadNanos = overheadNanos;
+        }
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public int getActiveThreads() {
+            return activeThreads;
+        }
+
+        public long getQueuedTasks() {
+            return queuedTasks;
+        }
+
+        public long getStealCount() {
+            return stealCount;
+        }
+
+        public int getRunningPipelines() {
+            return runningPipelines;
+        }
+
+        public long getOverheadNanos() {
+            return overheadNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("parallelism %d, threads %d, active %d, queued %d, steals %d, running pipelines %d, overhead %,d ns",
+                    parallelism, poolSize, activeThreads, queuedTasks, stealCount, runningPipelines, overheadNanos);
+        }
+    }
+
+    /**
+     * ProcessingParallelStreams with an AdaptiveExecutor: the small count stays sequential,
+     * a heavy report goes to its own pool, the common pool is not used by either.
+     */
+    public static class AdaptiveExecution {
+
+        public static void main(String[] args) throws JMException {
+            StreamProbe probe = new StreamProbe("execution", 1);
+            try (AdaptiveExecutor reports = new AdaptiveExecutor("reports", 2, probe)) {
+                reports.register();
+
+                for (int i = 0; i < N; i++) {
+                    reports.execute("count", LIMIT, LongStream.range(1, LIMIT), LongStream::count);
+                    reports.execute("report", 2_000_000, LongStream.range(0, 2_000_000),
+                            numbers -> numbers.mapToDouble(Math::sqrt).map(Math::log1p).sum());
+                }
+                List<String> names = StreamsCW_001.names;
+                long longNames = reports.execute("names", names, stream -> stream.filter(name -> name.length() > 5).count());
+                System.out.println(longNames);
+
+                reports.getPipelines().forEach(System.out::println);
+                System.out.println(reports.getPool());
+                probe.getStages().stream().map(StageSnapshot::toString).sorted().forEach(System.out::println);
+            }
+        }
+    }
+}
@@ -5,6 +5,10 @@ import java.util.Map;
 import java.util.Random;
 import java.util.stream.Stream;
 
+import com.ua.codespace.StreamsPrimitive_001.LongCountMap;
+import com.ua.codespace.StreamsPrimitive_001.LongStreamGenerator;
+import com.ua.codespace.StreamsPrimitive_001.RandomStreams;
+
 import static java.util.function.Function.identity;
 import static java.util.stream.Collectors.counting;
 import static java.util.stream.Collectors.groupingBy;
@@ -44,4 +48,21 @@ public class StreamsHWF_001 {
 
 
     }
+
+    /**
+     * The same task without boxing: LongStream is counted straight into a primitive table,
+     * and entries are filtered over the table as well.
+     * The generator is seeded and doesn't share a Random, so it can go parallel and gives the same result on every run.
+     */
+    public static class PrimitiveCounting {
+        public static void main(String[] args) {
+            long size = 10000;
+            LongStreamGenerator longStreamGenerator = new RandomStreams(42L).longGenerator(0L, size / 10L);
+
+            LongCountMap longMap = LongCountMap.of(longStreamGenerator.generateStream(size).parallel());
+
+            longMap.filterCounts(count -> count > 10L)
+                    .forEach((key, count) -> System.out.println(key + "=" + count));
+        }
+    }
 }
@@ -0,0 +1,529 @@
+package com.ua.codespace;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+import java.util.function.LongUnaryOperator;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import static com.ua.codespace.StreamsCW_001.ProcessingParallelStreams.LIMIT;
+import static com.ua.codespace.StreamsCW_001.ProcessingParallelStreams.N;
+
+/**
+ * Where does a pipeline spend its time?
+ * performNTimes in ProcessingParallelStreams times whole runs. Elements of a stream go through all stages
+ * one by one, so a stage can only be measured by its function: a probe wraps the lambdas of map/filter/peek,
+ * and counts elements, times them and records which worker thread did the work.
+ */
+public class StreamsMetrics_001 {
+
+    /**
+     * Histogram of non-negative long values (nanoseconds) in fixed memory, as HdrHistogram does:
+     * values below 128 have their own buckets, above that every power of two is split into 64 buckets,
+     * so a bucket is at most 1/64 (1.6%) of its values wide. 3712 buckets cover all longs.
+     * Safe for concurrent recording.
+     */
+    static final class LatencyHistogram {
+        static final int SUB_BUCKET_BITS = 7;
+        private static final int HALF = 1 << (SUB_BUCKET_BITS - 1);
+        static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * HALF;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            long v = Math.max(value, 0);
+            counts.incrementAndGet(bucket(v));
+            count.incrementAndGet();
+            sum.addAndGet(v);
+            long current;
+            while (v > (current = max.get()) && !max.compareAndSet(current, v)) {
+                /* retry */
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        Snapshot snapshot() {
+            return new Snapshot().add(this);
+        }
+
+        static int bucket(long value) {
+            if (value < 2 * HALF) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+            return (shift + 1) * HALF + (int) (value >>> shift) - HALF;
+        }
+
+        static long highestValue(int bucket) {
+            if (bucket < 2 * HALF) {
+                return bucket;
+            }
+            int shift = bucket / HALF - 1;
+            long subBucket = bucket % HALF + HALF;
+            return ((subBucket + 1) << shift) - 1;
+        }
+
+        /**
+         * Sum of histograms at some moment, values recorded meanwhile may be counted partially.
+         */
+        static final class Snapshot {
+            private final long[] counts = new long[BUCKETS];
+            private long count;
+            private long sum;
+            private long max;
+
+            Snapshot add(LatencyHistogram histogram) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] += histogram.counts.get(i);
+                }
+                count += histogram.count.get();
+                sum += histogram.sum.get();
+                max = Math.max(max, histogram.max.get());
+                return this;
+            }
+
+            long count() {
+                return count;
+            }
+
+            long max() {
+                return max;
+            }
+
+            double mean() {
+                return count == 0 ? 0 : (double) sum / count;
+            }
+
+            /**
+             * The highest value of the bucket, where the percentile falls (never above the max).
+             */
+            long percentile(double percentile) {
+                long total = 0;
+                for (long c : counts) {
+                    total += c;
+                }
+                long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+                long seen = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) {
+                        return Math.min(highestValue(i), max);
+                    }
+                }
+                return max;
+            }
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Statistics of one stage, in getters for the MXBean.
+     */
+    public static final class StageSnapshot {
+        private final String name;
+        private final long elements;
+        private final long rejected;
+        private final LatencyHistogram.Snapshot latency;
+        private final Map<String, Long> workerElements;
+
+        StageSnapshot(String name, long elements, long rejected, LatencyHistogram.Snapshot latency, Map<String, Long> workerElements) {
+            this.name = name;
+            this.elements = elements;
+            this.rejected = rejected;
+            this.latency = latency;
+            this.workerElements = Collections.unmodifiableMap(workerElements);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getElements() {
+            return elements;
+        }
+
+        /**
+         * Elements, that didn't pass a filter stage.
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getTimedElements() {
+            return latency.count();
+        }
+
+        public double getMeanNanos() {
+            return latency.mean();
+        }
+
+        public long getP50Nanos() {
+            return latency.percentile(50);
+        }
+
+        public long getP90Nanos() {
+            return latency.percentile(90);
+        }
+
+        public long getP99Nanos() {
+            return latency.percentile(99);
+        }
+
+        public long getP999Nanos() {
+            return latency.percentile(99.9);
+        }
+
+        public long getMaxNanos() {
+            return latency.max();
+        }
+
+        public Map<String, Long> getWorkerElements() {
+            return workerElements;
+        }
+
+        /**
+         * Elements of the busiest worker to the mean per worker: 1 is an even split.
+         */
+        public double getWorkerSkew() {
+            long busiest = workerElements.values().stream().mapToLong(Long::longValue).max().orElse(0);
+            return elements == 0 ? 0 : (double) busiest * workerElements.size() / elements;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-16s elements %,d, rejected %,d, timed %,d, mean %.0f ns, p50 %,d ns, p90 %,d ns, p99 %,d ns, max %,d ns, workers %d, skew %.2f",
+                    name, elements, rejected, getTimedElements(), getMeanNanos(), getP50Nanos(), getP90Nanos(),
+                    getP99Nanos(), getMaxNanos(), workerElements.size(), getWorkerSkew());
+        }
+    }
+
+    public interface StreamProbeMXBean {
+        boolean isEnabled();
+
+        void setEnabled(boolean enabled);
+
+        List<StageSnapshot> getStages();
+
+        void reset();
+    }
+
+    /**
+     * Wraps functions of pipeline stages, so they are counted and timed by stage name.
+     * Every thread records into its own recorder of the stage (no contention between fork-join workers),
+     * recorders are summed up by getStages(). Every timeEvery-th element of a thread is timed, the others
+     * are only counted, as System.nanoTime costs about as much as a simple lambda.
+     * <p>
+     * A disabled probe returns the functions themselves, so a pipeline built while the probe is disabled
+     * runs exactly as without it. Enabling affects pipelines built afterwards, while disabling takes effect
+     * at once: wrappers, that are already built, call the functions directly without counting.
+     */
+    static final class StreamProbe implements StreamProbeMXBean {
+        private static final long NOT_TIMED = Long.MIN_VALUE;
+
+        private final String name;
+        private final int timeEvery;
+        private final ConcurrentMap<String, Stage> stages = new ConcurrentHashMap<>();
+        private volatile boolean enabled = true;
+
+        StreamProbe(String name, int timeEvery) {
+            if (timeEvery <= 0) {
+                throw new IllegalArgumentException("timeEvery must be positive: " + timeEvery);
+            }
+            this.name = name;
+            this.timeEvery = timeEvery;
+        }
+
+        <T, R> Function<T, R> function(String stage, Function<T, R> function) {
+            if (!enabled) {
+                return function;
+            }
+            Stage s = stage(stage);
+            return value -> {
+                if (!enabled) {
+                    return function.apply(value);
+                }
+                Recorder recorder = s.recorder();
+                long start = recorder.start();
+                R result = function.apply(value);
+                recorder.stop(start);
+                return result;
+            };
+        }
+
+        <T> Predicate<T> predicate(String stage, Predicate<T> predicate) {
+            if (!enabled) {
+                return predicate;
+            }
+            Stage s = stage(stage);
+            return value -> {
+                if (!enabled) {
+                    return predicate.test(value);
+                }
+                Recorder recorder = s.recorder();
+                long start = recorder.start();
+                boolean result = predicate.test(value);
+                recorder.stop(start);
+                if (!result) {
+                    recorder.rejected.lazySet(recorder.rejected.get() + 1);
+                }
+                return result;
+            };
+        }
+
+        <T> Consumer<T> consumer(String stage, Consumer<T> consumer) {
+            if (!enabled) {
+                return consumer;
+            }
+            Stage s = stage(stage);
+            return value -> {
+                if (!enabled) {
+                    consumer.accept(value);
+                    return;
+                }
+                Recorder recorder = s.recorder();
+                long start = recorder.start();
+                consumer.accept(value);
+                recorder.stop(start);
+            };
+        }
+
+        LongUnaryOperator longOperator(String stage, LongUnaryOperator operator) {
+            if (!enabled) {
+                return operator;
+            }
+            Stage s = stage(stage);
+            return value -> {
+                if (!enabled) {
+                    return operator.applyAsLong(value);
+                }
+                Recorder recorder = s.recorder();
+                long start = recorder.start();
+                long result = operator.applyAsLong(value);
+                recorder.stop(start);
+                return result;
+            };
+        }
+
+        LongPredicate longPredicate(String stage, LongPredicate predicate) {
+            if (!enabled) {
+                return predicate;
+            }
+            Stage s = stage(stage);
+            return value -> {
+                if (!enabled) {
+                    return predicate.test(value);
+                }
+                Recorder recorder = s.recorder();
+                long start = recorder.start();
+                boolean result = predicate.test(value);
+                recorder.stop(start);
+                if (!result) {
+                    recorder.rejected.lazySet(recorder.rejected.get() + 1);
+                }
+                return result;
+            };
+        }
+
+        /**
+         * Runs (and always times) a whole pipeline as one element of the stage, as performNTimes does.
+         */
+        <R> R measure(String stage, Supplier<R> pipeline) {
+            if (!enabled) {
+                return pipeline.get();
+            }
+            Recorder recorder = stage(stage).recorder();
+            long start = System.nanoTime();
+            R result = pipeline.get();
+            recorder.elements.lazySet(recorder.elements.get() + 1);
+            recorder.latency.record(System.nanoTime() - start);
+            return result;
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        @Override
+        public List<StageSnapshot> getStages() {
+            return stages.values().stream().map(Stage::snapshot).collect(Collectors.toList());
+        }
+
+        @Override
+        public void reset() {
+            stages.values().forEach(Stage::reset);
+        }
+
+        /**
+         * Registers the probe in the platform MBean server as com.ua.codespace:type=StreamProbe,name=[name].
+         */
+        ObjectName register() throws JMException {
+            ObjectName objectName = new ObjectName("com.ua.codespace:type=StreamProbe,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        }
+
+        private Stage stage(String stage) {
+            return stages.computeIfAbsent(stage, Stage::new);
+        }
+
+        private final class Stage {
+            private final String name;
+            private final Queue<Recorder> recorders = new ConcurrentLinkedQueue<>();
+            private final ThreadLocal<Recorder> recorder = ThreadLocal.withInitial(() -> {
+                Recorder recorder = new Recorder(Thread.currentThread().getName());
+                recorders.add(recorder);
+                return recorder;
+            });
+
+            Stage(String name) {
+                this.name = name;
+            }
+
+            Recorder recorder() {
+                return recorder.get();
+            }
+
+            StageSnapshot snapshot() {
+                LatencyHistogram.Snapshot latency = new LatencyHistogram.Snapshot();
+                Map<String, Long> workerElements = new TreeMap<>();
+                long elements = 0;
+                long rejected = 0;
+                for (Recorder recorder : recorders) {
+                    latency.add(recorder.latency);
+                    long recorded = recorder.elements.get();
+                    workerElements.merge(recorder.thread, recorded, Long::sum);
+                    elements += recorded;
+                    rejected += recorder.rejected.get();
+                }
+                return new StageSnapshot(name, elements, rejected, latency, workerElements);
+            }
+
+            void reset() {
+                for (Recorder recorder : recorders) {
+                    recorder.elements.set(0);
+                    recorder.rejected.set(0);
+                    recorder.latency.reset();
+                }
+            }
+        }
+
+        /**
+         * Counters of one thread. Only the owner thread writes them, so counters are increased with lazySet
+         * (no atomic instruction), and read by snapshots from any thread.
+         */
+        private final class Recorder {
+            final String thread;
+            final AtomicLong elements = new AtomicLong();
+            final AtomicLong rejected = new AtomicLong();
+            final LatencyHistogram latency = new LatencyHistogram();
+            private int untilTimed;
+
+            Recorder(String thread) {
+                this.thread = thread;
+            }
+
+            long start() {
+                elements.lazySet(elements.get() + 1);
+                if (--untilTimed > 0) {
+                    return NOT_TIMED;
+                }
+                untilTimed = timeEvery;
+                return System.nanoTime();
+            }
+
+            void stop(long start) {
+                if (start != NOT_TIMED) {
+                    latency.record(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * The pipelines of StreamsCW_001 with a probe, read through JMX
+     */
+    public static class InstrumentedPipelines {
+
+        public static void main(String[] args) throws JMException {
+            List<String> names = IntStream.range(0, 2_000_000)
+                    .mapToObj(i -> StreamsCW_001.names.get(i % StreamsCW_001.names.size()) + i)
+                    .collect(Collectors.toList());
+
+            StreamProbe probe = new StreamProbe("names", 16);
+            ObjectName objectName = probe.register();
+
+            long count = names.parallelStream()
+                    .filter(probe.predicate("long name", name -> name.length() > 7))
+                    .map(probe.function("upper case", String::toUpperCase))
+                    .filter(probe.predicate("has R", name -> name.indexOf('R') >= 0))
+                    .count();
+            System.out.println(count);
+
+            for (int i = 0; i < N; i++) {
+                probe.measure("sequential count", () -> LongStream.range(1, LIMIT).count());
+                probe.measure("parallel count", () -> LongStream.range(1, LIMIT).parallel().count());
+            }
+            probe.getStages().forEach(System.out::println);
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (CompositeData stage : (CompositeData[]) server.getAttribute(objectName, "Stages")) {
+                System.out.println("JMX: " + stage.get("name") + " p99 " + stage.get("p99Nanos") + " ns");
+            }
+
+            /* the same pipeline with and without a disabled probe */
+            probe.setEnabled(false);
+            for (int i = 0; i < 5; i++) {
+                long start = System.nanoTime();
+                names.parallelStream().filter(name -> name.length() > 7).map(String::toUpperCase).count();
+                long plain = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                names.parallelStream()
+                        .filter(probe.predicate("long name", name -> name.length() > 7))
+                        .map(probe.function("upper case", String::toUpperCase))
+                        .count();
+                long disabled = System.nanoTime() - start;
+                System.out.println("plain " + plain / 1_000_000 + " ms, disabled probe " + disabled / 1_000_000 + " ms");
+            }
+            /* nothing was recorded by the pipelines built while the probe was disabled */
+            System.out.println(probe.getStages().stream().mapToLong(StageSnapshot::getElements).sum() + " elements recorded");
+        }
+    }
+}
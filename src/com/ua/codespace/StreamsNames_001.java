@@ -0,0 +1,467 @@
+package com.ua.codespace;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lists of many short names.
+ * A String of 6 chars is a String object, a byte[]/char[] object and a reference in the list: three headers
+ * and two pointers to follow for every name, more memory than the chars themselves.
+ * LongNameCountFunctional counts names by length, that doesn't need the chars at all.
+ */
+public class StreamsNames_001 {
+
+    /**
+     * Names packed one after another into one arena: one byte per char while all chars are Latin-1
+     * (as compact Strings do), one char per char otherwise. Name i is arena[offsets[i], offsets[i + 1]).
+     * The arena is a list of pages of PAGE_SIZE elements, so it is not limited by the size of one array,
+     * offsets are long and a name can start on one page and end on the next one.
+     * A histogram of lengths is kept, so counts by length are answered from it without touching the names.
+     * stream() gives lightweight CharSequence views of the names and splits for parallel streams by index.
+     */
+    static final class NameArena {
+        /* lengths from HISTOGRAM_SIZE - 1 up are counted in the last bucket */
+        static final int HISTOGRAM_SIZE = 256;
+        static final int PAGE_BITS = 30;
+        static final int PAGE_SIZE = 1 << PAGE_BITS;
+        private static final int PAGE_MASK = PAGE_SIZE - 1;
+        /* offsets is one array of MAX_NAMES + 1 elements */
+        static final int MAX_NAMES = Integer.MAX_VALUE - 16;
+
+        private final byte[][] latin1;
+        private final char[][] chars;
+        private final long[] offsets;
+        private final int size;
+        private final long[] histogram;
+
+        private NameArena(byte[][] latin1, char[][] chars, long[] offsets, int size, long[] histogram) {
+            this.latin1 = latin1;
+            this.chars = chars;
+            this.offsets = offsets;
+            this.size = size;
+            this.histogram = histogram;
+        }
+
+        static NameArena of(Collection<? extends CharSequence> names) {
+            Builder builder = new Builder();
+            names.forEach(builder::add);
+            return builder.build();
+        }
+
+        static Collector<CharSequence, Builder, NameArena> toArena() {
+            return Collector.of(Builder::new, Builder::add, Builder::addAll, Builder::build);
+        }
+
+        int size() {
+            return size;
+        }
+
+        int length(int index) {
+            checkIndex(index);
+            return (int) (offsets[index + 1] - offsets[index]);
+        }
+
+        char charAt(int index, int position) {
+            long start = offsets[index];
+            if (position < 0 || position >= length(index)) {
+                throw new IndexOutOfBoundsException("position " + position + ", length " + length(index));
+            }
+            return at(start + position);
+        }
+
+        String get(int index) {
+            checkIndex(index);
+            long start = offsets[index];
+            char[] text = new char[(int) (offsets[index + 1] - start)];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = at(start + i);
+            }
+            return new String(text);
+        }
+
+        Name view(int index) {
+            checkIndex(index);
+            return new Name(this, index);
+        }
+
+        /**
+         * Number of names, which lengths match the predicate. Only the histogram is read, and offsets of names
+         * longer than HISTOGRAM_SIZE - 2, if there are any.
+         */
+        long count(IntPredicate lengthPredicate) {
+            long count = 0;
+            for (int length = 0; length < HISTOGRAM_SIZE - 1; length++) {
+                if (histogram[length] != 0 && lengthPredicate.test(length)) {
+                    count += histogram[length];
+                }
+            }
+            if (histogram[HISTOGRAM_SIZE - 1] != 0) {
+                for (int i = 0; i < size; i++) {
+                    int length = (int) (offsets[i + 1] - offsets[i]);
+                    if (length >= HISTOGRAM_SIZE - 1 && lengthPredicate.test(length)) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        IntStream lengths() {
+            return IntStream.range(0, size).map(i -> (int) (offsets[i + 1] - offsets[i]));
+        }
+
+        Stream<Name> stream() {
+            return StreamSupport.stream(new NameSpliterator(this, 0, size), false);
+        }
+
+        Stream<Name> parallelStream() {
+            return StreamSupport.stream(new NameSpliterator(this, 0, size), true);
+        }
+
+        /**
+         * Arena, offsets and histogram, without the object headers.
+         */
+        long memoryBytes() {
+            long arena = 0;
+            if (latin1 != null) {
+                for (byte[] page : latin1) {
+                    arena += page.length;
+                }
+            } else {
+                for (char[] page : chars) {
+                    arena += 2L * page.length;
+                }
+            }
+            return arena + 8L * offsets.length + 8L * histogram.length;
+        }
+
+        private char at(long position) {
+            int page = (int) (position >>> PAGE_BITS);
+            int index = (int) position & PAGE_MASK;
+            return latin1 != null ? (char) (latin1[page][index] & 0xFF) : chars[page][index];
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+            }
+        }
+
+        /**
+         * Collects names into an arena. The last page grows by doubling up to PAGE_SIZE, then the next page
+         * is started. The arena switches to chars on the first non Latin-1 char.
+         */
+        static final class Builder {
+            private byte[][] latin1 = {new byte[64]};
+            private char[][] chars;
+            private long length;
+            private long[] offsets = new long[17];
+            private int size;
+            private final long[] histogram = new long[HISTOGRAM_SIZE];
+
+            Builder add(CharSequence name) {
+                int nameLength = name.length();
+                ensureCapacity(nameLength);
+                for (int i = 0; i < nameLength; i++) {
+                    char c = name.charAt(i);
+                    if (chars == null && c > 0xFF) {
+                        inflate();
+                    }
+                    long position = length + i;
+                    int page = (int) (position >>> PAGE_BITS);
+                    int index = (int) position & PAGE_MASK;
+                    if (chars == null) {
+                        latin1[page][index] = (byte) c;
+                    } else {
+                        chars[page][index] = c;
+                    }
+                }
+                length += nameLength;
+                ensureOffsets(1);
+                offsets[++size] = length;
+                histogram[Math.min(nameLength, HISTOGRAM_SIZE - 1)]++;
+                return this;
+            }
+
+            Builder addAll(Builder other) {
+                ensureCapacity(other.length);
+                if (chars == null && other.chars != null) {
+                    inflate();
+                }
+                /* page by page: a chunk ends at a page end of the source or of the target */
+                long copied = 0;
+                while (copied < other.length) {
+                    long target = length + copied;
+                    int sourcePage = (int) (copied >>> PAGE_BITS);
+                    int sourceIndex = (int) copied & PAGE_MASK;
+                    int targetPage = (int) (target >>> PAGE_BITS);
+                    int targetIndex = (int) target & PAGE_MASK;
+                    int chunk = (int) Math.min(other.length - copied, PAGE_SIZE - Math.max(sourceIndex, targetIndex));
+                    if (chars == null) {
+                        System.arraycopy(other.latin1[sourcePage], sourceIndex, latin1[targetPage], targetIndex, chunk);
+                    } else if (other.chars != null) {
+                        System.arraycopy(other.chars[sourcePage], sourceIndex, chars[targetPage], targetIndex, chunk);
+                    } else {
+                        for (int i = 0; i < chunk; i++) {
+                            chars[targetPage][targetIndex + i] = (char) (other.latin1[sourcePage][sourceIndex + i] & 0xFF);
+                        }
+                    }
+                    copied += chunk;
+                }
+                ensureOffsets(other.size);
+                for (int i = 1; i <= other.size; i++) {
+                    offsets[size + i] = length + other.offsets[i];
+                }
+                size += other.size;
+                length += other.length;
+                for (int i = 0; i < histogram.length; i++) {
+                    histogram[i] += other.histogram[i];
+                }
+                return this;
+            }
+
+            /* full pages are never written again, they are shared with the arena, the last one is trimmed */
+            NameArena build() {
+                int pages = (int) Math.max(1, (length + PAGE_SIZE - 1) >>> PAGE_BITS);
+                int lastPageLength = (int) (length - ((long) (pages - 1) << PAGE_BITS));
+                byte[][] latin1Pages = null;
+                char[][] charPages = null;
+                if (chars == null) {
+                    latin1Pages = Arrays.copyOf(latin1, pages);
+                    latin1Pages[pages - 1] = Arrays.copyOf(latin1[pages - 1], lastPageLength);
+                } else {
+                    charPages = Arrays.copyOf(chars, pages);
+                    charPages[pages - 1] = Arrays.copyOf(chars[pages - 1], lastPageLength);
+                }
+                return new NameArena(latin1Pages, charPages, Arrays.copyOf(offsets, size + 1), size, histogram.clone());
+            }
+
+            private void ensureOffsets(int names) {
+                if (names > MAX_NAMES - size) {
+                    throw new IllegalStateException("An arena holds at most " + MAX_NAMES + " names, can't add "
+                            + names + " to " + size);
+                }
+                if (size + names >= offsets.length) {
+                    offsets = Arrays.copyOf(offsets, (int) Math.min(MAX_NAMES + 1L, Math.max(2L * offsets.length, size + names + 1L)));
+                }
+            }
+
+            private void ensureCapacity(long nameLength) {
+                long required = length + nameLength;
+                if (required == 0) {
+                    return;
+                }
+                int lastPage = (int) ((required - 1) >>> PAGE_BITS);
+                int pages = chars == null ? latin1.length : chars.length;
+                if (lastPage >= pages) {
+                    if (chars == null) {
+                        latin1 = Arrays.copyOf(latin1, Math.max(lastPage + 1, 2 * pages));
+                    } else {
+                        chars = Arrays.copyOf(chars, Math.max(lastPage + 1, 2 * pages));
+                    }
+                }
+                for (int page = (int) (length >>> PAGE_BITS); page <= lastPage; page++) {
+                    int needed = page < lastPage ? PAGE_SIZE : (int) (required - ((long) page << PAGE_BITS));
+                    int capacity = chars == null
+                            ? (latin1[page] == null ? 0 : latin1[page].length)
+                            : (chars[page] == null ? 0 : chars[page].length);
+                    if (needed > capacity) {
+                        int newCapacity = page < lastPage ? PAGE_SIZE : (int) Math.min(PAGE_SIZE, Math.max(needed, 2L * capacity));
+                        if (chars == null) {
+                            latin1[page] = latin1[page] == null ? new byte[newCapacity] : Arrays.copyOf(latin1[page], newCapacity);
+                        } else {
+                            chars[page] = chars[page] == null ? new char[newCapacity] : Arrays.copyOf(chars[page], newCapacity);
+                        }
+                    }
+                }
+            }
+
+            private void inflate() {
+                chars = new char[latin1.length][];
+                for (int page = 0; page < latin1.length; page++) {
+                    if (latin1[page] != null) {
+                        chars[page] = new char[latin1[page].length];
+                        for (int i = 0; i < latin1[page].length; i++) {
+                            chars[page][i] = (char) (latin1[page][i] & 0xFF);
+                        }
+                    }
+                }
+                latin1 = null;
+            }
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * A name in an arena: two fields, no copy of the chars. length() doesn't read the arena.
+     * Equal to other views with the same chars, hashCode is the same as String.hashCode.
+     */
+    static final class Name implements CharSequence, Comparable<Name> {
+        private final NameArena arena;
+        private final int index;
+
+        Name(NameArena arena, int index) {
+            this.arena = arena;
+            this.index = index;
+        }
+
+        int index() {
+            return index;
+        }
+
+        @Override
+        public int length() {
+            return (int) (arena.offsets[index + 1] - arena.offsets[index]);
+        }
+
+        @Override
+        public char charAt(int position) {
+            return arena.charAt(index, position);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public int compareTo(Name other) {
+            int length = Math.min(length(), other.length());
+            for (int i = 0; i < length; i++) {
+                int result = Character.compare(charAt(i), other.charAt(i));
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return Integer.compare(length(), other.length());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Name) || ((Name) o).length() != length()) {
+                return false;
+            }
+            return compareTo((Name) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 0;
+            for (int i = 0; i < length(); i++) {
+                hash = 31 * hash + charAt(i);
+            }
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return arena.get(index);
+        }
+    }
+
+    /**
+     * Splits a range of indexes in halves, views are created only for the names, that are consumed.
+     */
+    static final class NameSpliterator implements Spliterator<Name> {
+        private final NameArena arena;
+        private int from;
+        private final int to;
+
+        NameSpliterator(NameArena arena, int from, int to) {
+            this.arena = arena;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Name> action) {
+            if (from >= to) {
+                return false;
+            }
+            action.accept(new Name(arena, from++));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Name> action) {
+            for (int i = from; i < to; i++) {
+                action.accept(new Name(arena, i));
+            }
+            from = to;
+        }
+
+        @Override
+        public Spliterator<Name> trySplit() {
+            int middle = (from + to) >>> 1;
+            if (middle <= from) {
+                return null;
+            }
+            Spliterator<Name> prefix = new NameSpliterator(arena, from, middle);
+            from = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return to - from;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
+        }
+    }
+
+    /**
+     * LongNameCountFunctional on an arena
+     */
+    public static class PackedNames {
+
+        public static void main(String[] args) {
+            NameArena arena = NameArena.of(StreamsCW_001.names);
+            System.out.println(arena.count(length -> length > 5));
+            System.out.println(arena.stream().filter(name -> name.length() > 5).map(Name::toString).collect(Collectors.toList()));
+
+            /* 5 million names */
+            List<String> names = IntStream.range(0, 5_000_000)
+                    .mapToObj(i -> StreamsCW_001.names.get(i % StreamsCW_001.names.size()) + i % 1000)
+                    .collect(Collectors.toList());
+            NameArena packed = names.parallelStream().collect(NameArena.toArena());
+            System.out.println("arena: " + packed.memoryBytes() / 1024 + " KB, Strings: about "
+                    + names.stream().mapToLong(name -> 4 + 24 + 16 + name.length()).sum() / 1024 + " KB");
+
+            for (int i = 0; i < 5; i++) {
+                long start = System.nanoTime();
+                long count = names.stream()
+                        .filter(name -> name.length() > 5)
+                        .mapToLong(name -> 1L)
+                        .reduce(0, Long::sum);
+                long strings = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                long viewCount = packed.parallelStream().filter(name -> name.length() > 5).count();
+                long views = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                long histogramCount = packed.count(length -> length > 5);
+                long histogram = System.nanoTime() - start;
+
+                System.out.println(count + " / " + viewCount + " / " + histogramCount + ", Strings: " + strings / 1_000
+                        + " us, views: " + views / 1_000 + " us, histogram: " + histogram / 1_000 + " us");
+            }
+        }
+    }
+}
@@ -0,0 +1,629 @@
+package com.ua.codespace;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import com.ua.codespace.MethodRefCE_002.AppendingConverter;
+import com.ua.codespace.MethodRefCE_002.LongAppender;
+import com.ua.codespace.MethodRefCE_002.ObjectAppender;
+
+/**
+ * Writing stream results, that don't fit in the heap as one String.
+ * CollectAndReduceName joins names with reduce (a new String per element, O(n^2) copying)
+ * and with Collectors.joining (one StringBuilder with the whole result).
+ * Here elements are encoded as UTF-8 right into direct ByteBuffers, and the buffers are written to a channel.
+ */
+public class StreamsOutput_001 {
+
+    /**
+     * Direct buffers of the same size, reused between collections. At most maxPooled free buffers are kept.
+     */
+    static final class BufferPool {
+        private final int bufferSize;
+        private final int maxPooled;
+        private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        BufferPool(int bufferSize, int maxPooled) {
+            if (bufferSize <= 0 || maxPooled < 0) {
+                throw new IllegalArgumentException("bufferSize must be positive and maxPooled not negative");
+            }
+            this.bufferSize = bufferSize;
+            this.maxPooled = maxPooled;
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer buffer = free.poll();
+            if (buffer == null) {
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+            pooled.decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        /* buffers of other sizes (and heap buffers) are not pooled */
+        void release(ByteBuffer buffer) {
+            if (!buffer.isDirect() || buffer.capacity() != bufferSize) {
+                return;
+            }
+            if (pooled.incrementAndGet() <= maxPooled) {
+                free.offer(buffer);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+
+        int bufferSize() {
+            return bufferSize;
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Collectors.joining, that writes to a channel.
+     * <p>
+     * collector() keeps the encoded text of every chunk in pooled buffers, chunks of a parallel stream are
+     * concatenated in order by the combiner (the buffers are linked, not copied), and everything is written to
+     * the channel by the finisher. The result is the number of bytes written.
+     * It holds the whole output off-heap until the end, so for really big outputs use join(stream):
+     * a sequential stream is written as it goes through one buffer, and a parallel one is split into
+     * leaves of about leafSize elements, which are encoded by fork-join workers and written in order,
+     * not more than window leaves at once.
+     * <p>
+     * A terminated joiner writes the delimiter after every element (lines) instead of between elements.
+     */
+    static final class ChannelJoiner<T> {
+        static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+        static final int DEFAULT_LEAF_SIZE = 1 << 16;
+
+        private final WritableByteChannel channel;
+        private final byte[] delimiter;
+        private final boolean terminated;
+        private final AppendingConverter<? super T> converter;
+        private final BufferPool pool;
+        private final int leafSize;
+        private final int window;
+
+        ChannelJoiner(WritableByteChannel channel, CharSequence delimiter, boolean terminated,
+                      AppendingConverter<? super T> converter, BufferPool pool, int leafSize, int window) {
+            if (leafSize <= 0 || window <= 0) {
+                throw new IllegalArgumentException("leafSize and window must be positive");
+            }
+            this.channel = channel;
+            this.delimiter = delimiter.toString().getBytes(StandardCharsets.UTF_8);
+            this.terminated = terminated;
+            this.converter = converter;
+            this.pool = pool;
+            this.leafSize = leafSize;
+            this.window = window;
+        }
+
+        static ChannelJoiner<Object> joining(WritableByteChannel channel, CharSequence delimiter) {
+            return new ChannelJoiner<>(channel, delimiter, false, ObjectAppender.INSTANCE,
+                    new BufferPool(DEFAULT_BUFFER_SIZE, 4 * ForkJoinPool.getCommonPoolParallelism()),
+                    DEFAULT_LEAF_SIZE, 2 * ForkJoinPool.getCommonPoolParallelism());
+        }
+
+        Collector<T, Chunk, Long> collector() {
+            return Collector.of(() -> new Chunk(null), Chunk::add, Chunk::append, chunk -> {
+                try {
+                    return chunk.writeTo(channel);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+
+        long join(Stream<? extends T> stream) throws IOException {
+            try (Stream<? extends T> source = stream) {
+                if (!source.isParallel()) {
+                    Chunk chunk = new Chunk(channel);
+                    source.forEachOrdered(chunk::add);
+                    return chunk.writeTo(channel);
+                }
+                return joinParallel(source.spliterator());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        private long joinParallel(Spliterator<? extends T> source) throws IOException {
+            Deque<Spliterator<? extends T>> pending = new ArrayDeque<>();
+            pending.push(source);
+            Deque<Future<Chunk>> encoding = new ArrayDeque<>();
+            long written = 0;
+            boolean first = true;
+            try {
+                while (!pending.isEmpty() || !encoding.isEmpty()) {
+                    while (!pending.isEmpty() && encoding.size() < window) {
+                        Spliterator<? extends T> leaf = nextLeaf(pending);
+                        encoding.add(ForkJoinPool.commonPool().submit(() -> {
+                            Chunk chunk = new Chunk(null);
+                            leaf.forEachRemaining(chunk::add);
+                            return chunk;
+                        }));
+                    }
+                    Chunk chunk = encoding.poll().get();
+                    if (!chunk.empty && !first && !terminated) {
+                        written += writeFully(channel, ByteBuffer.wrap(delimiter));
+                    }
+                    first &= chunk.empty;
+                    written += chunk.writeTo(channel);
+                }
+                return written;
+            } catch (ExecutionException e) {
+                throw rethrow(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } finally {
+                encoding.forEach(future -> future.cancel(false));
+            }
+        }
+
+        /* splits off prefixes until the first one is small enough, suffixes are kept in order for the next leaves */
+        private Spliterator<? extends T> nextLeaf(Deque<Spliterator<? extends T>> pending) {
+            Spliterator<? extends T> leaf = pending.pop();
+            Spliterator<? extends T> prefix;
+            while (leaf.estimateSize() > leafSize && (prefix = leaf.trySplit()) != null) {
+                pending.push(leaf);
+                leaf = prefix;
+            }
+            return leaf;
+        }
+
+        private static IOException rethrow(Throwable cause) {
+            if (cause instanceof UncheckedIOException) {
+                return ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            return new IOException(cause);
+        }
+
+        /**
+         * Encoded text of consecutive elements: filled buffers (ready to be read) and the current one.
+         * A chunk with a channel writes filled buffers right away and reuses one buffer.
+         */
+        final class Chunk {
+            private final WritableByteChannel target;
+            private final List<ByteBuffer> filled = new ArrayList<>();
+            private ByteBuffer current;
+            private long flushed;
+            private boolean empty = true;
+
+            Chunk(WritableByteChannel target) {
+                this.target = target;
+            }
+
+            void add(T value) {
+                if (!empty && !terminated) {
+                    put(delimiter);
+                }
+                empty = false;
+                if (current == null) {
+                    current = pool.acquire();
+                }
+                try {
+                    converter.appendTo(value, current);
+                } catch (BufferOverflowException e) {
+                    /* the buffer is unchanged, the text goes to the next one */
+                    nextBuffer();
+                    try {
+                        converter.appendTo(value, current);
+                    } catch (BufferOverflowException tooLong) {
+                        /* longer than a buffer: encoded into its own heap buffer */
+                        addLarge(value);
+                    }
+                }
+                if (terminated) {
+                    put(delimiter);
+                }
+            }
+
+            private void addLarge(T value) {
+                ByteBuffer buffer = encodeLarge(converter, value, pool.bufferSize());
+                if (target == null) {
+                    filled.add(buffer);
+                    return;
+                }
+                try {
+                    flushed += writeFully(target, buffer);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            private void put(byte[] bytes) {
+                for (int offset = 0; offset < bytes.length; ) {
+                    if (current == null || !current.hasRemaining()) {
+                        nextBuffer();
+                    }
+                    int length = Math.min(bytes.length - offset, current.remaining());
+                    current.put(bytes, offset, length);
+                    offset += length;
+                }
+            }
+
+            private void nextBuffer() {
+                if (current != null && target != null) {
+                    current.flip();
+                    try {
+                        flushed += writeFully(target, current);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    current.clear();
+                    return;
+                }
+                if (current != null) {
+                    current.flip();
+                    filled.add(current);
+                }
+                current = pool.acquire();
+            }
+
+            Chunk append(Chunk other) {
+                if (other.empty) {
+                    return this;
+                }
+                if (empty) {
+                    return other;
+                }
+                if (!terminated) {
+                    put(delimiter);
+                }
+                current.flip();
+                filled.add(current);
+                filled.addAll(other.filled);
+                current = other.current;
+                return this;
+            }
+
+            /**
+             * Writes the rest of the text and returns the buffers to the pool.
+             * Returns the total number of bytes of the chunk.
+             */
+            long writeTo(WritableByteChannel channel) throws IOException {
+                long written = flushed;
+                try {
+                    for (ByteBuffer buffer : filled) {
+                        written += writeFully(channel, buffer);
+                    }
+                    if (current != null) {
+                        current.flip();
+                        written += writeFully(channel, current);
+                    }
+                } finally {
+                    filled.forEach(pool::release);
+                    if (current != null) {
+                        pool.release(current);
+                    }
+                    filled.clear();
+                    current = null;
+                }
+                return written;
+            }
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Replacement for forEach(System.out::println) and printStream: every thread formats elements into its own buffer
+     * (no lock, no String for numbers and CharSequences), and a full buffer is written to the channel as one block.
+     * An element and its separator are never split between blocks, so lines of different threads don't mix,
+     * but with forEach on a parallel stream the blocks come in any order. printAll(stream) keeps the encounter order.
+     * <p>
+     * Output stays in the buffers until flush() or close(), that must be called when no thread is writing
+     * (after the terminal operation).
+     */
+    static final class OutputSink implements Consumer<Object>, LongConsumer, Flushable, Closeable {
+        static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+        private final WritableByteChannel channel;
+        private final boolean ownsChannel;
+        private final boolean flushSystemOut;
+        private final CharSequence separator;
+        private final byte[] separatorBytes;
+        private final int bufferSize;
+        private final Object writeLock = new Object();
+        private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final ThreadLocal<ByteBuffer> threadBuffer;
+        private final BufferPool pool;
+
+        private OutputSink(WritableByteChannel channel, boolean ownsChannel, boolean flushSystemOut,
+                           CharSequence separator, int bufferSize) {
+            this.separatorBytes = separator.toString().getBytes(StandardCharsets.UTF_8);
+            if (separatorBytes.length + 20 > bufferSize) {
+                throw new IllegalArgumentException("Buffer of " + bufferSize + " bytes is too small for the separator");
+            }
+            this.channel = channel;
+            this.ownsChannel = ownsChannel;
+            this.flushSystemOut = flushSystemOut;
+            this.separator = separator;
+            this.bufferSize = bufferSize;
+            this.threadBuffer = ThreadLocal.withInitial(() -> {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+                buffers.add(buffer);
+                return buffer;
+            });
+            this.pool = new BufferPool(bufferSize, 4 * ForkJoinPool.getCommonPoolParallelism());
+        }
+
+        /**
+         * Lines to the standard output. System.out is flushed before every block, so both can be used together.
+         */
+        static OutputSink stdout() {
+            return stdout(System.lineSeparator());
+        }
+
+        static OutputSink stdout(CharSequence separator) {
+            return new OutputSink(Channels.newChannel(new FileOutputStream(FileDescriptor.out)), false, true,
+                    separator, DEFAULT_BUFFER_SIZE);
+        }
+
+        /**
+         * The channel is not closed by the sink.
+         */
+        static OutputSink to(WritableByteChannel channel, CharSequence separator) {
+            return new OutputSink(channel, false, false, separator, DEFAULT_BUFFER_SIZE);
+        }
+
+        static OutputSink open(Path file, CharSequence separator) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            return new OutputSink(channel, true, false, separator, DEFAULT_BUFFER_SIZE);
+        }
+
+        /**
+         * Writes String.valueOf(value) and the separator.
+         */
+        @Override
+        public void accept(Object value) {
+            ByteBuffer buffer = threadBuffer.get();
+            if (tryAppend(value, buffer)) {
+                return;
+            }
+            writeBlock(buffer);
+            if (!tryAppend(value, buffer)) {
+                write(encodeLarge(ObjectAppender.INSTANCE, value, bufferSize), ByteBuffer.wrap(separatorBytes));
+            }
+        }
+
+        /**
+         * Writes the value as Long.toString and the separator, without creating a String.
+         */
+        @Override
+        public void accept(long value) {
+            ByteBuffer buffer = threadBuffer.get();
+            if (!tryAppend(value, buffer)) {
+                writeBlock(buffer);
+                tryAppend(value, buffer);
+            }
+        }
+
+        private boolean tryAppend(long value, ByteBuffer buffer) {
+            int position = buffer.position();
+            try {
+                LongAppender.INSTANCE.appendTo(value, buffer);
+                buffer.put(separatorBytes);
+                return true;
+            } catch (BufferOverflowException e) {
+                buffer.position(position);
+                return false;
+            }
+        }
+
+        private boolean tryAppend(Object value, ByteBuffer buffer) {
+            int position = buffer.position();
+            try {
+                ObjectAppender.INSTANCE.appendTo(value, buffer);
+                buffer.put(separatorBytes);
+                return true;
+            } catch (BufferOverflowException e) {
+                buffer.position(position);
+                return false;
+            }
+        }
+
+        /**
+         * Writes all elements in the encounter order, a parallel stream is formatted by fork-join workers.
+         * Buffered output is flushed first. Must not be called while other threads write to the sink.
+         */
+        void printAll(Stream<?> stream) throws IOException {
+            flush();
+            new ChannelJoiner<Object>(channel, separator, true, ObjectAppender.INSTANCE, pool,
+                    ChannelJoiner.DEFAULT_LEAF_SIZE, 2 * ForkJoinPool.getCommonPoolParallelism()).join(stream);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                for (ByteBuffer buffer : buffers) {
+                    if (buffer.position() > 0) {
+                        writeBlock(buffer);
+                    }
+                }
+                if (flushSystemOut) {
+                    System.out.flush();
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                if (ownsChannel) {
+                    channel.close();
+                }
+            }
+        }
+
+        private void writeBlock(ByteBuffer buffer) {
+            buffer.flip();
+            write(buffer);
+            buffer.clear();
+        }
+
+        private void write(ByteBuffer... blocks) {
+            synchronized (writeLock) {
+                if (flushSystemOut) {
+                    System.out.flush();
+                }
+                try {
+                    for (ByteBuffer block : blocks) {
+                        writeFully(channel, block);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes a text, that doesn't fit into a buffer of bufferSize bytes, into a heap buffer. The result is ready to be read.
+     */
+    static <T> ByteBuffer encodeLarge(AppendingConverter<? super T> converter, T value, int bufferSize) {
+        for (int size = 2 * bufferSize; ; size = Math.multiplyExact(size, 2)) {
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            try {
+                converter.appendTo(value, buffer);
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException ignored) {
+                /* try twice as much */
+            }
+        }
+    }
+
+    static int writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return length;
+    }
+
+    /**
+     * CollectAndReduceName with a million names, written to a file instead of a String
+     */
+    public static class JoiningToChannel {
+
+        public static void main(String[] args) throws IOException {
+            String[] names = IntStream.range(0, 1_000_000)
+                    .mapToObj(i -> StreamsCW_001.names.get(i % StreamsCW_001.names.size()) + i)
+                    .toArray(String[]::new);
+            String expected = Arrays.stream(names).collect(Collectors.joining(", "));
+
+            Path file = Files.createTempFile("names", ".txt");
+            try {
+                for (boolean parallel : new boolean[]{false, true}) {
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        ChannelJoiner<Object> joiner = ChannelJoiner.joining(channel, ", ");
+                        Stream<String> stream = parallel ? Arrays.stream(names).parallel() : Arrays.stream(names);
+                        long written = joiner.join(stream);
+                        System.out.println((parallel ? "parallel: " : "sequential: ") + written + " bytes, "
+                                + expected.equals(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)));
+                    }
+                }
+
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long written = Arrays.stream(names).parallel().filter(name -> name.length() > 8)
+                            .collect(ChannelJoiner.joining(channel, ", ").collector());
+                    System.out.println("collector: " + written + " bytes");
+                }
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * CreatingStreams.printStream and forEach(System.out::println) through an OutputSink
+     */
+    public static class BufferedPrinting {
+
+        public static void main(String[] args) throws IOException {
+            OutputSink commaSeparated = OutputSink.stdout(", ");
+            commaSeparated.printAll(Stream.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+            commaSeparated.flush();
+            System.out.println("\n");
+
+            try (OutputSink out = OutputSink.stdout()) {
+                StreamsCW_001.names.stream().filter(name -> name.length() > 5).forEach(out);
+            }
+
+            /* a million lines: PrintStream with autoflush, as System.out, and the sink */
+            Path file = Files.createTempFile("lines", ".txt");
+            try {
+                long start = System.nanoTime();
+                try (PrintStream printStream = new PrintStream(new FileOutputStream(file.toFile()), true)) {
+                    LongStream.range(0, 1_000_000).forEach(printStream::println);
+                }
+                System.out.println("PrintStream: " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                byte[] expected = Files.readAllBytes(file);
+
+                start = System.nanoTime();
+                try (OutputSink out = OutputSink.open(file, System.lineSeparator())) {
+                    out.printAll(LongStream.range(0, 1_000_000).boxed().parallel());
+                }
+                System.out.println("OutputSink, ordered parallel: " + (System.nanoTime() - start) / 1_000_000 + " ms, "
+                        + Arrays.equals(expected, Files.readAllBytes(file)));
+
+                start = System.nanoTime();
+                try (OutputSink out = OutputSink.open(file, System.lineSeparator())) {
+                    LongStream.range(0, 1_000_000).parallel().forEach(out);
+                }
+                System.out.println("OutputSink, forEach parallel: " + (System.nanoTime() - start) / 1_000_000 + " ms, "
+                        + (Files.size(file) == expected.length));
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+}
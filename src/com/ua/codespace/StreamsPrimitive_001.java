@@ -0,0 +1,529 @@
+package com.ua.codespace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongPredicate;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collector;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * Primitive specializations for stream pipelines, that would otherwise box every element.
+ */
+public class StreamsPrimitive_001 {
+
+    interface LongStreamGenerator {
+        LongStream generateStream(long size);
+    }
+
+    interface IntStreamGenerator {
+        IntStream generateStream(long size);
+    }
+
+    interface LongLongConsumer {
+        void accept(long key, long value);
+    }
+
+    /**
+     * Open-addressing long -> count map.
+     * Replaces groupingBy(identity(), counting()) over boxed longs: no Long key, no Long count, no HashMap.Node per value,
+     * just two long arrays. A slot is free while its count is 0, so any long (including 0) can be a key.
+     */
+    static final class LongCountMap {
+        private long[] keys;
+        private long[] counts;
+        private int size;
+
+        LongCountMap() {
+            this(16);
+        }
+
+        LongCountMap(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+            keys = new long[capacity];
+            counts = new long[capacity];
+        }
+
+        /**
+         * Counts all elements of the stream, works for parallel streams as well.
+         */
+        static LongCountMap of(LongStream stream) {
+            return stream.collect(LongCountMap::new, LongCountMap::increment, LongCountMap::addAll);
+        }
+
+        void increment(long key) {
+            add(key, 1L);
+        }
+
+        /**
+         * Adds a positive count: a count can't go down to 0, that would make its slot free in the middle of a probe chain.
+         */
+        void add(long key, long count) {
+            if (count <= 0) {
+                throw new IllegalArgumentException("count must be positive: " + count);
+            }
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (counts[slot] != 0) {
+                if (keys[slot] == key) {
+                    counts[slot] += count;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            counts[slot] = count;
+            if (++size * 2 > keys.length) {
+                rehash();
+            }
+        }
+
+        long get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = mix(key) & mask; counts[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return counts[slot];
+                }
+            }
+            return 0L;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void addAll(LongCountMap other) {
+            other.forEach(this::add);
+        }
+
+        void forEach(LongLongConsumer consumer) {
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (counts[slot] != 0) {
+                    consumer.accept(keys[slot], counts[slot]);
+                }
+            }
+        }
+
+        /**
+         * Returns a new map with entries, which counts match the predicate.
+         */
+        LongCountMap filterCounts(LongPredicate predicate) {
+            LongCountMap result = new LongCountMap();
+            forEach((key, count) -> {
+                if (predicate.test(count)) {
+                    result.add(key, count);
+                }
+            });
+            return result;
+        }
+
+        Map<Long, Long> toMap() {
+            Map<Long, Long> map = new HashMap<>(size * 2);
+            forEach(map::put);
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("{");
+            forEach((key, count) -> sb.append(sb.length() > 1 ? ", " : "").append(key).append('=').append(count));
+            return sb.append('}').toString();
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            long[] oldCounts = counts;
+            keys = new long[oldKeys.length * 2];
+            counts = new long[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldCounts[i] != 0) {
+                    int slot = mix(oldKeys[i]) & mask;
+                    while (counts[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    counts[slot] = oldCounts[i];
+                }
+            }
+        }
+
+        private static int mix(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    interface IntObjConsumer<T> {
+        void accept(int key, T value);
+    }
+
+    /**
+     * Elements grouped by an int key, the result of groupingByInt.
+     * Replaces groupingBy(classifier, toSet()) for int keys: no Integer key and no HashSet per group.
+     * All elements are in one array, sorted by group (keys ascending, encounter order inside a group),
+     * groups are ranges of it, so sizes are known without touching the elements and group(key) is a view.
+     * <p>
+     * Accumulation only appends (key, element) to arrays of its own chunk, so a parallel stream accumulates
+     * without any shared state, and chunks are linked, not copied, when combined. Grouping is done by the finisher
+     * with a counting sort: keys are array indexes when the key range is dense (not more than DENSITY times
+     * the number of elements plus DENSE_SLACK, so small inputs use arrays too, and fits into an array),
+     * and are looked up in an open-addressing int -> int table otherwise.
+     */
+    static final class IntGroups<T> {
+        static final int DENSITY = 4;
+        static final int DENSE_SLACK = 1024;
+        static final int SEGMENT_SIZE = 1 << 16;
+
+        private final int[] groupKeys;
+        private final int[] starts;
+        private final Object[] elements;
+        private final int minKey;
+        private final int[] denseIndex;
+        private final IntIndexMap sparseIndex;
+
+        private IntGroups(int[] groupKeys, int[] starts, Object[] elements, int minKey, int[] denseIndex, IntIndexMap sparseIndex) {
+            this.groupKeys = groupKeys;
+            this.starts = starts;
+            this.elements = elements;
+            this.minKey = minKey;
+            this.denseIndex = denseIndex;
+            this.sparseIndex = sparseIndex;
+        }
+
+        static <T> Collector<T, ?, IntGroups<T>> groupingByInt(ToIntFunction<? super T> classifier) {
+            return Collector.<T, Accumulator<T>, IntGroups<T>>of(Accumulator::new,
+                    (accumulator, element) -> accumulator.add(classifier.applyAsInt(element), element),
+                    Accumulator::append, Accumulator::group);
+        }
+
+        int groupCount() {
+            return groupKeys.length;
+        }
+
+        boolean isDense() {
+            return denseIndex != null;
+        }
+
+        int size(int key) {
+            int group = indexOf(key);
+            return group < 0 ? 0 : starts[group + 1] - starts[group];
+        }
+
+        /**
+         * Unmodifiable view of the group, empty if there is no such key.
+         */
+        List<T> group(int key) {
+            int group = indexOf(key);
+            return group < 0 ? Collections.emptyList() : view(group);
+        }
+
+        int[] keys() {
+            return groupKeys.clone();
+        }
+
+        /**
+         * Keys of groups, which sizes match the predicate, e.g. size -> size > 1.
+         */
+        int[] keysWhere(IntPredicate sizePredicate) {
+            return IntStream.range(0, groupKeys.length)
+                    .filter(group -> sizePredicate.test(starts[group + 1] - starts[group]))
+                    .map(group -> groupKeys[group])
+                    .toArray();
+        }
+
+        void forEachGroup(IntPredicate sizePredicate, IntObjConsumer<? super List<T>> consumer) {
+            for (int group = 0; group < groupKeys.length; group++) {
+                if (sizePredicate.test(starts[group + 1] - starts[group])) {
+                    consumer.accept(groupKeys[group], view(group));
+                }
+            }
+        }
+
+        Map<Integer, List<T>> toMap() {
+            Map<Integer, List<T>> map = new LinkedHashMap<>(groupKeys.length * 2);
+            forEachGroup(size -> true, map::put);
+            return map;
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<T> view(int group) {
+            return Collections.unmodifiableList((List<T>) Arrays.asList(elements).subList(starts[group], starts[group + 1]));
+        }
+
+        private int indexOf(int key) {
+            if (denseIndex != null) {
+                long offset = (long) key - minKey;
+                return offset < 0 || offset >= denseIndex.length ? -1 : denseIndex[(int) offset];
+            }
+            return sparseIndex.get(key);
+        }
+
+        private static final class Segment {
+            int[] keys;
+            Object[] elements;
+            int size;
+
+            Segment(int capacity) {
+                keys = new int[capacity];
+                elements = new Object[capacity];
+            }
+        }
+
+        private static final class Accumulator<T> {
+            /* the last segment is filled, the others are full or come from combined chunks */
+            private final List<Segment> segments = new ArrayList<>();
+            private long count;
+            private int min = Integer.MAX_VALUE;
+            private int max = Integer.MIN_VALUE;
+
+            void add(int key, Object element) {
+                Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+                if (segment == null) {
+                    segment = new Segment(16);
+                    segments.add(segment);
+                } else if (segment.size == segment.keys.length) {
+                    if (segment.size < SEGMENT_SIZE) {
+                        segment.keys = Arrays.copyOf(segment.keys, segment.size * 2);
+                        segment.elements = Arrays.copyOf(segment.elements, segment.size * 2);
+                    } else {
+                        segment = new Segment(SEGMENT_SIZE);
+                        segments.add(segment);
+                    }
+                }
+                segment.keys[segment.size] = key;
+                segment.elements[segment.size++] = element;
+                count++;
+                min = Math.min(min, key);
+                max = Math.max(max, key);
+            }
+
+            Accumulator<T> append(Accumulator<T> other) {
+                segments.addAll(other.segments);
+                count += other.count;
+                min = Math.min(min, other.min);
+                max = Math.max(max, other.max);
+                return this;
+            }
+
+            IntGroups<T> group() {
+                if (count > Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Too many elements to group: " + count);
+                }
+                long range = (long) max - min + 1;
+                boolean dense = range <= DENSITY * count + DENSE_SLACK && range <= Integer.MAX_VALUE - 8;
+                return count > 0 && dense ? groupDense((int) range) : groupSparse();
+            }
+
+            private IntGroups<T> groupDense(int range) {
+                /* sizes by key, then the same array becomes key -> group */
+                int[] index = new int[range];
+                for (Segment segment : segments) {
+                    for (int i = 0; i < segment.size; i++) {
+                        index[segment.keys[i] - min]++;
+                    }
+                }
+                int groups = 0;
+                for (int size : index) {
+                    if (size > 0) {
+                        groups++;
+                    }
+                }
+                int[] groupKeys = new int[groups];
+                int[] starts = new int[groups + 1];
+                for (int offset = 0, group = 0; offset < range; offset++) {
+                    int size = index[offset];
+                    if (size == 0) {
+                        index[offset] = -1;
+                    } else {
+                        groupKeys[group] = min + offset;
+                        starts[group + 1] = starts[group] + size;
+                        index[offset] = group++;
+                    }
+                }
+                return new IntGroups<>(groupKeys, starts, place(starts, key -> index[key - min]), min, index, null);
+            }
+
+            private IntGroups<T> groupSparse() {
+                IntIndexMap index = new IntIndexMap();
+                int[] firstKeys = new int[16];
+                int[] sizes = new int[16];
+                int groups = 0;
+                for (Segment segment : segments) {
+                    for (int i = 0; i < segment.size; i++) {
+                        int group = index.get(segment.keys[i]);
+                        if (group < 0) {
+                            if (groups == firstKeys.length) {
+                                firstKeys = Arrays.copyOf(firstKeys, groups * 2);
+                                sizes = Arrays.copyOf(sizes, groups * 2);
+                            }
+                            group = groups++;
+                            index.put(segment.keys[i], group);
+                            firstKeys[group] = segment.keys[i];
+                        }
+                        sizes[group]++;
+                    }
+                }
+                /* groups are numbered in order of appearance, renumbered here in order of keys */
+                int[] groupKeys = Arrays.copyOf(firstKeys, groups);
+                Arrays.sort(groupKeys);
+                int[] starts = new int[groups + 1];
+                for (int group = 0; group < groups; group++) {
+                    starts[group + 1] = starts[group] + sizes[index.get(groupKeys[group])];
+                }
+                for (int group = 0; group < groups; group++) {
+                    index.put(groupKeys[group], group);
+                }
+                return new IntGroups<>(groupKeys, starts, place(starts, index::get), 0, null, index);
+            }
+
+            private Object[] place(int[] starts, IntUnaryOperator groupOf) {
+                Object[] elements = new Object[(int) count];
+                int[] next = Arrays.copyOf(starts, starts.length - 1);
+                for (Segment segment : segments) {
+                    for (int i = 0; i < segment.size; i++) {
+                        elements[next[groupOf.applyAsInt(segment.keys[i])]++] = segment.elements[i];
+                    }
+                }
+                return elements;
+            }
+        }
+    }
+
+    /**
+     * Open-addressing int -> non-negative int map, get returns -1 for absent keys.
+     * Values are stored plus one, so a slot is free while its value is 0.
+     */
+    static final class IntIndexMap {
+        private int[] keys = new int[16];
+        private int[] values = new int[16];
+        private int size;
+
+        int get(int key) {
+            int mask = keys.length - 1;
+            for (int slot = mix(key) & mask; values[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot] - 1;
+                }
+            }
+            return -1;
+        }
+
+        void put(int key, int value) {
+            if (value < 0 || value == Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Value out of range: " + value);
+            }
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (values[slot] != 0) {
+                if (keys[slot] == key) {
+                    values[slot] = value + 1;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value + 1;
+            if (++size * 2 > keys.length) {
+                rehash();
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void rehash() {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != 0) {
+                    int slot = mix(oldKeys[i]) & mask;
+                    while (values[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Seeded random streams, that scale under parallel() and are reproducible.
+     * A shared java.util.Random is contended by all threads and gives other values on every run.
+     * Here the stream is cut into fixed chunks, and every chunk gets its own SplittableRandom with a seed derived
+     * from (seed, chunk index). So the same seed gives the same values in the same order,
+     * no matter sequential or parallel, and chunks are generated without any shared state.
+     */
+    static final class RandomStreams {
+        static final int CHUNK_SIZE = 4096;
+        private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+        private final long seed;
+
+        RandomStreams(long seed) {
+            this.seed = seed;
+        }
+
+        LongStream longs(long size, long origin, long bound) {
+            return chunks(size).flatMap(chunk -> chunkRandom(chunk).longs(chunkSize(size, chunk), origin, bound));
+        }
+
+        IntStream ints(long size, int origin, int bound) {
+            return chunks(size)
+                    .mapToObj(chunk -> chunkRandom(chunk).ints(chunkSize(size, chunk), origin, bound))
+                    .flatMapToInt(ints -> ints);
+        }
+
+        LongStreamGenerator longGenerator(long origin, long bound) {
+            return size -> longs(size, origin, bound);
+        }
+
+        IntStreamGenerator intGenerator(int origin, int bound) {
+            return size -> ints(size, origin, bound);
+        }
+
+        private static LongStream chunks(long size) {
+            if (size < 0) {
+                throw new IllegalArgumentException("size must be non-negative: " + size);
+            }
+            return LongStream.range(0, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        }
+
+        private static long chunkSize(long size, long chunk) {
+            return Math.min(CHUNK_SIZE, size - chunk * CHUNK_SIZE);
+        }
+
+        private SplittableRandom chunkRandom(long chunk) {
+            return new SplittableRandom(mix64(seed + (chunk + 1) * GOLDEN_GAMMA));
+        }
+
+        private static long mix64(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+}
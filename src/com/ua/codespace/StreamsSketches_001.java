@@ -0,0 +1,340 @@
+package com.ua.codespace;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+
+import static com.ua.codespace.StreamsCW_001.CollectAndGroupWords.WORDS;
+import static com.ua.codespace.StreamsCW_001.CollectAndGroupWords.stateOfLambda;
+import static java.util.Collections.reverseOrder;
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.counting;
+import static java.util.stream.Collectors.groupingBy;
+
+/**
+ * Word frequency queries in bounded memory.
+ * groupingBy(identity(), counting()) keeps an entry for every distinct word, so memory grows with the vocabulary.
+ * The collectors below keep a fixed amount of state, no matter how big the input is,
+ * and trade exact answers for documented error bounds. All of them merge partial results, so they work with parallel streams.
+ */
+public class StreamsSketches_001 {
+
+    public static class ApproximateWordCount {
+        public static void main(String[] args) throws IOException {
+            try (Stream<String> lines = Files.lines(stateOfLambda)) {
+                List<String> words = Arrays.asList(lines.flatMap(WORDS::splitAsStream)
+                        .filter(word -> word.length() > 5)
+                        .toArray(String[]::new));
+
+                Map<String, Long> exact = words.stream().collect(groupingBy(identity(), counting()));
+
+                /* Top 10 words, the same question as CollectAndGroupWords asks with filter(> 20) and sorted() */
+                words.parallelStream()
+                        .collect(topK(10, 200))
+                        .forEach(entry -> System.out.println(entry + " (exact " + exact.get(entry.getKey()) + ")"));
+
+                CountMinSketch sketch = words.parallelStream().collect(countMinSketch(0.001, 0.01));
+                System.out.println("lambda: " + sketch.estimate("lambda") + " (exact " + exact.get("lambda") + ")");
+
+                System.out.println("vocabulary: " + words.parallelStream().collect(distinctCount(12))
+                        + " (exact " + exact.size() + ")");
+            }
+        }
+    }
+
+    /**
+     * Estimates frequencies of all words with a Count-Min Sketch: depth rows of width counters.
+     * With width = ceil(e / epsilon) and depth = ceil(ln(1 / delta)), an estimate is never below the true count,
+     * and is above it by more than epsilon * N (N - number of counted words) with probability at most delta.
+     * Memory: width * depth longs.
+     */
+    static Collector<String, ?, CountMinSketch> countMinSketch(double epsilon, double delta) {
+        return Collector.of(() -> new CountMinSketch(epsilon, delta), CountMinSketch::add, CountMinSketch::merge,
+                Collector.Characteristics.IDENTITY_FINISH, Collector.Characteristics.UNORDERED);
+    }
+
+    /**
+     * Returns k most frequent words with their estimated counts, most frequent first.
+     * Uses Space-Saving: m counters in a min-heap, a new word replaces the smallest counter and inherits its count.
+     * Every word with frequency above N / m is guaranteed to be tracked, and every reported count is above
+     * the true one by at most N / m. Merged summaries keep the same bound. Memory: m counters, m >= k.
+     */
+    static Collector<String, ?, List<Map.Entry<String, Long>>> topK(int k, int m) {
+        if (k > m) {
+            throw new IllegalArgumentException("k must not be greater than number of counters: " + k + " > " + m);
+        }
+        return Collector.of(() -> new SpaceSaving(m), SpaceSaving::add, SpaceSaving::merge, summary -> summary.top(k),
+                Collector.Characteristics.UNORDERED);
+    }
+
+    /**
+     * Estimates the number of distinct words with HyperLogLog over 2^precision registers.
+     * The relative standard error is about 1.04 / sqrt(2^precision), e.g. 1.6% for precision 12.
+     * Memory: 2^precision bytes.
+     */
+    static Collector<String, ?, Long> distinctCount(int precision) {
+        return Collector.of(() -> new HyperLogLog(precision), HyperLogLog::add, HyperLogLog::merge, HyperLogLog::estimate,
+                Collector.Characteristics.UNORDERED);
+    }
+
+    /**
+     * 64-bit hash of a word: FNV-1a over chars, finished with the MurmurHash3 mixer.
+     */
+    static long hash64(CharSequence word) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < word.length(); i++) {
+            h = (h ^ word.charAt(i)) * 0x100000001B3L;
+        }
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    static final class CountMinSketch {
+        private final int width;
+        private final int depth;
+        private final long[] table;
+        private long total;
+
+        CountMinSketch(double epsilon, double delta) {
+            if (epsilon <= 0 || delta <= 0 || delta >= 1) {
+                throw new IllegalArgumentException("epsilon must be > 0 and delta in (0, 1)");
+            }
+            this.width = (int) Math.ceil(Math.E / epsilon);
+            this.depth = (int) Math.ceil(Math.log(1 / delta));
+            this.table = new long[width * depth];
+        }
+
+        void add(String word) {
+            add(word, 1L);
+        }
+
+        void add(String word, long count) {
+            long hash = hash64(word);
+            for (int row = 0; row < depth; row++) {
+                table[row * width + column(hash, row)] += count;
+            }
+            total += count;
+        }
+
+        long estimate(String word) {
+            long hash = hash64(word);
+            long min = Long.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                min = Math.min(min, table[row * width + column(hash, row)]);
+            }
+            return min;
+        }
+
+        long total() {
+            return total;
+        }
+
+        CountMinSketch merge(CountMinSketch other) {
+            if (width != other.width || depth != other.depth) {
+                throw new IllegalArgumentException("Sketches of different sizes can't be merged");
+            }
+            for (int i = 0; i < table.length; i++) {
+                table[i] += other.table[i];
+            }
+            total += other.total;
+            return this;
+        }
+
+        /* Row hashes are h1 + row * h2 (Kirsch-Mitzenmacher), both halves taken from one 64-bit hash */
+        private int column(long hash, int row) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            return ((h1 + row * h2) & Integer.MAX_VALUE) % width;
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    static final class SpaceSaving {
+        static final class Counter {
+            final String word;
+            long count;
+            int heapIndex;
+
+            Counter(String word, long count) {
+                this.word = word;
+                this.count = count;
+            }
+        }
+
+        private final int capacity;
+        private final Map<String, Counter> counters;
+        private final Counter[] heap;
+        private int size;
+        private long total;
+
+        SpaceSaving(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("k must be positive: " + capacity);
+            }
+            this.capacity = capacity;
+            this.counters = new HashMap<>(capacity * 2);
+            this.heap = new Counter[capacity];
+        }
+
+        void add(String word) {
+            add(word, 1L);
+        }
+
+        void add(String word, long count) {
+            total += count;
+            Counter counter = counters.get(word);
+            if (counter != null) {
+                counter.count += count;
+                siftDown(counter.heapIndex);
+            } else if (size < capacity) {
+                counter = new Counter(word, count);
+                counters.put(word, counter);
+                heap[size] = counter;
+                counter.heapIndex = size++;
+                siftUp(counter.heapIndex);
+            } else {
+                Counter min = heap[0];
+                counters.remove(min.word);
+                counter = new Counter(word, min.count + count);
+                counters.put(word, counter);
+                heap[0] = counter;
+                siftDown(0);
+            }
+        }
+
+        /**
+         * Merges two summaries (Agarwal et al., "Mergeable Summaries"): a word missing in one summary
+         * gets that summary's minimum counter as its count there, then the k largest counters are kept.
+         */
+        SpaceSaving merge(SpaceSaving other) {
+            long thisMin = size < capacity ? 0 : heap[0].count;
+            long otherMin = other.size < other.capacity ? 0 : other.heap[0].count;
+            Map<String, Long> combined = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                combined.put(heap[i].word, heap[i].count + otherMin);
+            }
+            for (int i = 0; i < other.size; i++) {
+                Counter counter = other.heap[i];
+                combined.merge(counter.word, counter.count + thisMin, (mine, theirs) -> mine - otherMin + counter.count);
+            }
+            SpaceSaving merged = new SpaceSaving(capacity);
+            combined.entrySet().stream()
+                    .sorted(reverseOrder(Map.Entry.comparingByValue()))
+                    .limit(capacity)
+                    .forEach(entry -> merged.add(entry.getKey(), entry.getValue()));
+            merged.total = total + other.total;
+            return merged;
+        }
+
+        List<Map.Entry<String, Long>> top(int k) {
+            List<Map.Entry<String, Long>> top = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                top.add(new SimpleImmutableEntry<>(heap[i].word, heap[i].count));
+            }
+            top.sort(reverseOrder(Map.Entry.comparingByValue()));
+            return top.size() > k ? new ArrayList<>(top.subList(0, k)) : top;
+        }
+
+        private void siftUp(int index) {
+            Counter counter = heap[index];
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (heap[parent].count <= counter.count) {
+                    break;
+                }
+                place(heap[parent], index);
+                index = parent;
+            }
+            place(counter, index);
+        }
+
+        private void siftDown(int index) {
+            Counter counter = heap[index];
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                    child++;
+                }
+                if (counter.count <= heap[child].count) {
+                    break;
+                }
+                place(heap[child], index);
+                index = child;
+            }
+            place(counter, index);
+        }
+
+        private void place(Counter counter, int index) {
+            heap[index] = counter;
+            counter.heapIndex = index;
+        }
+    }
+
+    //    -------------------------------------------------------------------------------------------------------------
+
+    static final class HyperLogLog {
+        private final int precision;
+        private final byte[] registers;
+
+        HyperLogLog(int precision) {
+            if (precision < 4 || precision > 18) {
+                throw new IllegalArgumentException("precision must be in [4, 18]: " + precision);
+            }
+            this.precision = precision;
+            this.registers = new byte[1 << precision];
+        }
+
+        void add(String word) {
+            long hash = hash64(word);
+            int index = (int) (hash >>> (64 - precision));
+            /* the guard bit keeps the rank finite when all remaining bits are zero */
+            int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+            if (rank > registers[index]) {
+                registers[index] = (byte) rank;
+            }
+        }
+
+        HyperLogLog merge(HyperLogLog other) {
+            if (precision != other.precision) {
+                throw new IllegalArgumentException("Sketches of different precision can't be merged");
+            }
+            for (int i = 0; i < registers.length; i++) {
+                registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+            }
+            return this;
+        }
+
+        long estimate() {
+            int m = registers.length;
+            double sum = 0;
+            int zeros = 0;
+            for (byte register : registers) {
+                sum += 1.0 / (1L << register);
+                if (register == 0) {
+                    zeros++;
+                }
+            }
+            double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+            double estimate = alpha * m * m / sum;
+            if (estimate <= 2.5 * m && zeros > 0) {
+                /* linear counting is more precise for small cardinalities */
+                estimate = m * Math.log((double) m / zeros);
+            }
+            return Math.round(estimate);
+        }
+    }
+}
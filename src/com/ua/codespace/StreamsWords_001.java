@@ -0,0 +1,436 @@
+package com.ua.codespace;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static com.ua.codespace.StreamsCW_001.CollectAndGroupWords.WORDS;
+import static com.ua.codespace.StreamsCW_001.CollectAndGroupWords.stateOfLambda;
+import static java.util.Collections.reverseOrder;
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.counting;
+import static java.util.stream.Collectors.groupingBy;
+
+/**
+ * Counting words of big files.
+ * CollectAndGroupWords works fine for in.txt, but Files.lines splits badly in parallel (the source doesn't know its size)
+ * and every line is decoded into a String before it is split into words.
+ */
+public class StreamsWords_001 {
+
+    /**
+     * Memory-mapped word count.
+     * The file is cut into newline-aligned chunks, every chunk is mapped and counted on its own core,
+     * and partial tables are merged at the end. Words are cut straight from the mapped bytes by WordTokenizer.
+     * The result is the same as lines.flatMap(WORDS::splitAsStream).filter(length > minLength).collect(groupingBy(identity(), counting()))
+     */
+    public static class MappedWordCount {
+        static final int DEFAULT_CHUNK_SIZE = 32 * 1024 * 1024;
+
+        public static void main(String[] args) throws IOException {
+            Map<String, Long> wordsCountMap = count(stateOfLambda, 5);
+
+            wordsCountMap.entrySet().stream()
+                    .filter(entry -> entry.getValue() > 20)
+                    .sorted(reverseOrder(Map.Entry.comparingByValue()))
+                    .forEach(System.out::println);
+
+            /* Small chunks force a lot of splits, the result must not change */
+            try (Stream<String> lines = Files.lines(stateOfLambda)) {
+                Map<String, Long> expected = lines.flatMap(WORDS::splitAsStream)
+                        .filter(word -> word.length() > 5)
+                        .collect(groupingBy(identity(), counting()));
+                System.out.println(expected.equals(wordsCountMap) && expected.equals(count(stateOfLambda, 5, 1024)));
+            }
+        }
+
+        static Map<String, Long> count(Path path, int minLength) throws IOException {
+            return count(path, minLength, DEFAULT_CHUNK_SIZE);
+        }
+
+        static Map<String, Long> count(Path path, int minLength, int chunkSize) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long[] bounds = chunkBounds(channel, chunkSize);
+                return IntStream.range(0, bounds.length - 1)
+                        .parallel()
+                        .mapToObj(i -> countChunk(channel, bounds[i], bounds[i + 1], minLength))
+                        .reduce(WordCountTable::merge)
+                        .map(WordCountTable::toMap)
+                        .orElseGet(HashMap::new);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Returns chunk borders: chunk i is [bounds[i], bounds[i + 1]).
+         * Every border except the last one is placed right after a '\n', so no word is cut in two.
+         */
+        static long[] chunkBounds(FileChannel channel, int chunkSize) throws IOException {
+            long size = channel.size();
+            long[] bounds = new long[(int) (size / chunkSize) + 2];
+            int n = 0;
+            long position = 0;
+            bounds[n++] = position;
+            while (position < size) {
+                long end = position + chunkSize;
+                position = end >= size ? size : nextLineStart(channel, end, size);
+                if (n == bounds.length) {
+                    bounds = Arrays.copyOf(bounds, n * 2);
+                }
+                bounds[n++] = position;
+            }
+            return Arrays.copyOf(bounds, n);
+        }
+
+        private static long nextLineStart(FileChannel channel, long from, long size) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            long position = from;
+            while (position < size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        return position + i + 1;
+                    }
+                }
+                position += read;
+            }
+            return size;
+        }
+
+        private static WordCountTable countChunk(FileChannel channel, long start, long end, int minLength) {
+            try {
+                MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                WordCountTable table = new WordCountTable();
+                WordTokenizer.countWords(bytes, minLength, table);
+                return table;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Hand written replacement for WORDS::splitAsStream over UTF-8 bytes.
+     * All delimiters of [\p{Punct}\s]+ are ASCII and bytes of multi-byte UTF-8 sequences are always >= 0x80,
+     * so words can be cut without decoding. The word length in chars is counted on the fly
+     * (a 4-byte sequence is a surrogate pair, i.e. 2 chars), and the length filter runs before anything is allocated.
+     * Input is expected to be valid UTF-8, it is not validated here.
+     */
+    static class WordTokenizer {
+        private static final boolean[] DELIMITERS = new boolean[128];
+
+        static {
+            for (char c : "!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~ \t\n\u000B\f\r".toCharArray()) {
+                DELIMITERS[c] = true;
+            }
+        }
+
+        static boolean isDelimiter(byte b) {
+            return b >= 0 && DELIMITERS[b];
+        }
+
+        /**
+         * Counts every word of bytes[position, limit) longer than minLength chars.
+         */
+        static void countWords(ByteBuffer bytes, int minLength, WordCountTable table) {
+            int limit = bytes.limit();
+            int i = bytes.position();
+            while (i < limit) {
+                while (i < limit && isDelimiter(bytes.get(i))) {
+                    i++;
+                }
+                int start = i;
+                int chars = 0;
+                byte b;
+                while (i < limit && !isDelimiter(b = bytes.get(i))) {
+                    if ((b & 0xC0) != 0x80) {
+                        chars += (b & 0xF8) == 0xF0 ? 2 : 1;
+                    }
+                    i++;
+                }
+                if (chars > minLength) {
+                    table.add(bytes, start, i - start, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Open-addressing word -> count table keyed by UTF-8 byte slices.
+     * A word is probed by (buffer, offset, length); its bytes are copied into the arena only the first time it is seen,
+     * so repeated words cost no allocation at all. Strings are created once per distinct word, in toMap().
+     */
+    static class WordCountTable {
+        private byte[] arena = new byte[1 << 12];
+        private int arenaSize;
+
+        private int[] offsets = new int[16];
+        private int[] lengths = new int[16];
+        private int[] hashes = new int[16];
+        private long[] counts = new long[16];
+        private int size;
+
+        void add(ByteBuffer bytes, int offset, int length, long count) {
+            int hash = hash(bytes, offset, length);
+            int mask = lengths.length - 1;
+            int slot = hash & mask;
+            while (lengths[slot] != 0) {
+                if (hashes[slot] == hash && sameBytes(slot, bytes, offset, length)) {
+                    counts[slot] += count;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (arenaSize + length > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + length));
+            }
+            for (int i = 0; i < length; i++) {
+                arena[arenaSize + i] = bytes.get(offset + i);
+            }
+            insert(slot, arenaSize, length, hash, count);
+            arenaSize += length;
+        }
+
+        long get(String word) {
+            ByteBuffer bytes = ByteBuffer.wrap(word.getBytes(StandardCharsets.UTF_8));
+            int hash = hash(bytes, 0, bytes.limit());
+            int mask = lengths.length - 1;
+            for (int slot = hash & mask; lengths[slot] != 0; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash && sameBytes(slot, bytes, 0, bytes.limit())) {
+                    return counts[slot];
+                }
+            }
+            return 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Returns words counted more than threshold times, most frequent first.
+         */
+        List<Map.Entry<String, Long>> above(long threshold) {
+            List<Map.Entry<String, Long>> result = new ArrayList<>();
+            for (int slot = 0; slot < lengths.length; slot++) {
+                if (lengths[slot] != 0 && counts[slot] > threshold) {
+                    result.add(entry(slot));
+                }
+            }
+            result.sort(reverseOrder(Map.Entry.comparingByValue()));
+            return result;
+        }
+
+        /**
+         * Returns k most frequent words, most frequent first. Strings are created for these k words only.
+         */
+        List<Map.Entry<String, Long>> top(int k) {
+            PriorityQueue<Integer> heap = new PriorityQueue<>(Comparator.comparingLong(slot -> counts[slot]));
+            for (int slot = 0; slot < lengths.length; slot++) {
+                if (lengths[slot] != 0 && k > 0) {
+                    if (heap.size() < k) {
+                        heap.add(slot);
+                    } else if (counts[slot] > counts[heap.peek()]) {
+                        heap.poll();
+                        heap.add(slot);
+                    }
+                }
+            }
+            List<Map.Entry<String, Long>> result = new ArrayList<>(heap.size());
+            heap.forEach(slot -> result.add(entry(slot)));
+            result.sort(reverseOrder(Map.Entry.comparingByValue()));
+            return result;
+        }
+
+        private Map.Entry<String, Long> entry(int slot) {
+            return new SimpleImmutableEntry<>(new String(arena, offsets[slot], lengths[slot], StandardCharsets.UTF_8), counts[slot]);
+        }
+
+        /**
+         * Adds all counts of the smaller table into the bigger one and returns the bigger one.
+         */
+        static WordCountTable merge(WordCountTable left, WordCountTable right) {
+            WordCountTable big = left.size >= right.size ? left : right;
+            WordCountTable small = big == left ? right : left;
+            ByteBuffer smallArena = ByteBuffer.wrap(small.arena);
+            for (int slot = 0; slot < small.lengths.length; slot++) {
+                if (small.lengths[slot] != 0) {
+                    big.add(smallArena, small.offsets[slot], small.lengths[slot], small.counts[slot]);
+                }
+            }
+            return big;
+        }
+
+        Map<String, Long> toMap() {
+            Map<String, Long> map = new HashMap<>(size * 2);
+            for (int slot = 0; slot < lengths.length; slot++) {
+                if (lengths[slot] != 0) {
+                    map.put(new String(arena, offsets[slot], lengths[slot], StandardCharsets.UTF_8), counts[slot]);
+                }
+            }
+            return map;
+        }
+
+        private void insert(int slot, int offset, int length, int hash, long count) {
+            offsets[slot] = offset;
+            lengths[slot] = length;
+            hashes[slot] = hash;
+            counts[slot] = count;
+            if (++size * 2 > lengths.length) {
+                rehash();
+            }
+        }
+
+        private void rehash() {
+            int[] oldOffsets = offsets;
+            int[] oldLengths = lengths;
+            int[] oldHashes = hashes;
+            long[] oldCounts = counts;
+            int capacity = oldLengths.length * 2;
+            offsets = new int[capacity];
+            lengths = new int[capacity];
+            hashes = new int[capacity];
+            counts = new long[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < oldLengths.length; i++) {
+                if (oldLengths[i] != 0) {
+                    int slot = oldHashes[i] & mask;
+                    while (lengths[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    offsets[slot] = oldOffsets[i];
+                    lengths[slot] = oldLengths[i];
+                    hashes[slot] = oldHashes[i];
+                    counts[slot] = oldCounts[i];
+                }
+            }
+        }
+
+        private boolean sameBytes(int slot, ByteBuffer bytes, int offset, int length) {
+            if (lengths[slot] != length) {
+                return false;
+            }
+            int start = offsets[slot];
+            for (int i = 0; i < length; i++) {
+                if (arena[start + i] != bytes.get(offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hash(ByteBuffer bytes, int offset, int length) {
+            int h = 0;
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + bytes.get(offset + i);
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * Word count over an append-only file, that keeps growing.
+     * poll() reads only the bytes appended since the previous poll and adds their words to the existing counts.
+     * Bytes after the last delimiter may be a word, that is still being written, so they are left for the next poll.
+     * If the file becomes shorter than the consumed offset (truncated or rotated), counting starts over.
+     */
+    public static class TailingWordCount {
+        static final int MAX_READ_SIZE = 64 * 1024 * 1024;
+
+        private final Path path;
+        private final int minLength;
+        private WordCountTable table = new WordCountTable();
+        private long offset;
+
+        TailingWordCount(Path path, int minLength) {
+            this.path = path;
+            this.minLength = minLength;
+        }
+
+        public static void main(String[] args) throws IOException {
+            Path log = Files.createTempFile("words", ".log");
+            try {
+                TailingWordCount tail = new TailingWordCount(log, 5);
+                Files.write(log, "Stream operations, stream sources and inter".getBytes(StandardCharsets.UTF_8));
+                tail.poll();
+                System.out.println(tail.top(5));
+
+                /* "inter" wasn't finished, it becomes "intermediate" */
+                Files.write(log, "mediate operations\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+                tail.poll();
+                System.out.println(tail.above(1) + ", intermediate=" + tail.count("intermediate") + ", offset " + tail.offset());
+            } finally {
+                Files.delete(log);
+            }
+        }
+
+        /**
+         * Counts words appended since the previous call and returns the number of consumed bytes.
+         */
+        synchronized long poll() throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < offset) {
+                    table = new WordCountTable();
+                    offset = 0;
+                }
+                long start = offset;
+                while (offset < size) {
+                    long length = Math.min(size - offset, MAX_READ_SIZE);
+                    MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                    int end = (int) length;
+                    while (end > 0 && !WordTokenizer.isDelimiter(bytes.get(end - 1))) {
+                        end--;
+                    }
+                    if (end == 0) {
+                        if (length == MAX_READ_SIZE) {
+                            throw new IllegalStateException("No delimiter in " + MAX_READ_SIZE + " bytes at offset " + offset);
+                        }
+                        break;
+                    }
+                    bytes.limit(end);
+                    WordTokenizer.countWords(bytes, minLength, table);
+                    offset += end;
+                }
+                return offset - start;
+            }
+        }
+
+        synchronized long count(String word) {
+            return table.get(word);
+        }
+
+        synchronized List<Map.Entry<String, Long>> above(long threshold) {
+            return table.above(threshold);
+        }
+
+        synchronized List<Map.Entry<String, Long>> top(int k) {
+            return table.top(k);
+        }
+
+        synchronized long offset() {
+            return offset;
+        }
+    }
+}